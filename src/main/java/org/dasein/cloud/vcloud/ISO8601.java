@@ -205,6 +205,130 @@ public final class ISO8601 {
         return cal;
     }
 
+    /**
+     * Parses an ISO8601-compliant date/time string straight to milliseconds since the epoch. This accepts exactly
+     * the strings accepted by {@link #parse(String)} and yields the same instant, but common timestamps (unsigned
+     * four-digit years in the Gregorian era) are decoded arithmetically without allocating a <code>Calendar</code>,
+     * <code>TimeZone</code> or any substrings. Anything outside that fast path is handed to {@link #parse(String)}.
+     *
+     * @param text the date/time string to be parsed
+     * @param invalid the value to return if the input could not be parsed
+     * @return the number of milliseconds since the epoch, or <code>invalid</code> if the input could not be parsed
+     * @throws IllegalArgumentException if a <code>null</code> argument is passed
+     */
+    public static long parseMillis(String text, long invalid) {
+        if (text == null) {
+            throw new IllegalArgumentException("argument can not be null");
+        }
+        int len = text.length();
+
+        // YYYY-MM-DDThh:mm:ss.SSS followed by Z or +hh:mm/-hh:mm
+        if ((len == 24 || len == 29)
+                && text.charAt(4) == '-' && text.charAt(7) == '-' && text.charAt(10) == 'T'
+                && text.charAt(13) == ':' && text.charAt(16) == ':' && text.charAt(19) == '.') {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 2);
+            int day = digits(text, 8, 2);
+            int hour = digits(text, 11, 2);
+            int min = digits(text, 14, 2);
+            int sec = digits(text, 17, 2);
+            int ms = digits(text, 20, 3);
+            int offset = -1;
+
+            if (len == 24) {
+                if (text.charAt(23) == 'Z') {
+                    offset = 0;
+                }
+            } else if (text.charAt(26) == ':') {
+                char sign = text.charAt(23);
+                int tzHour = digits(text, 24, 2);
+                int tzMin = digits(text, 27, 2);
+
+                if ((sign == '+' || sign == '-') && tzHour >= 0 && tzMin >= 0) {
+                    if (tzHour > 23 || tzMin > 59) {
+                        // TimeZone.getTimeZone() would not round-trip this id
+                        return invalid;
+                    }
+                    offset = (tzHour * 60 + tzMin) * 60000;
+                    if (sign == '-') {
+                        offset = -offset;
+                    }
+                }
+            }
+            if ((year | month | day | hour | min | sec | ms) >= 0 && year > GREGORIAN_CUTOVER_YEAR && offset != -1) {
+                if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                        || hour > 23 || min > 59 || sec > 59) {
+                    return invalid;
+                }
+                long days = daysSinceEpoch(year, month, day);
+
+                return ((((days * 24 + hour) * 60 + min) * 60 + sec) * 1000 + ms) - offset;
+            }
+        }
+        // signed years, Julian dates and the odd corners of Integer.parseInt() take the original path
+        Calendar cal = parse(text);
+
+        return (cal == null ? invalid : cal.getTimeInMillis());
+    }
+
+    /**
+     * Formats milliseconds since the epoch as an ISO8601-compliant date/time string in UTC, e.g.
+     * <code>2013-02-05T15:46:00.000Z</code>. The result parses back to the same value with either
+     * {@link #parse(String)} or {@link #parseMillis(String, long)}.
+     *
+     * @param millis the time value to be formatted into a date/time string
+     * @return the formatted date/time string
+     * @throws IllegalArgumentException if the value falls outside the years 1583 through 9999
+     */
+    public static String format(long millis) throws IllegalArgumentException {
+        StringBuilder buf = new StringBuilder(24);
+
+        format(buf, millis);
+        return buf.toString();
+    }
+
+    /**
+     * Appends milliseconds since the epoch as an ISO8601-compliant UTC date/time string to the given buffer
+     * without any intermediate objects.
+     *
+     * @param buf the buffer to append to
+     * @param millis the time value to be formatted
+     * @throws IllegalArgumentException if the value falls outside the years 1583 through 9999
+     */
+    public static void format(StringBuilder buf, long millis) throws IllegalArgumentException {
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        int msOfDay = (int)(millis - days * MILLIS_PER_DAY);
+
+        // civil-from-days (proleptic Gregorian, eras of 400 years starting 0000-03-01)
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int)(z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year <= GREGORIAN_CUTOVER_YEAR || year > 9999) {
+            throw new IllegalArgumentException("Time value cannot be formatted as a Gregorian ISO8601 year: " + year);
+        }
+        appendDigits(buf, (int)year, 4);
+        buf.append('-');
+        appendDigits(buf, month, 2);
+        buf.append('-');
+        appendDigits(buf, day, 2);
+        buf.append('T');
+        appendDigits(buf, msOfDay / 3600000, 2);
+        buf.append(':');
+        appendDigits(buf, (msOfDay / 60000) % 60, 2);
+        buf.append(':');
+        appendDigits(buf, (msOfDay / 1000) % 60, 2);
+        buf.append('.');
+        appendDigits(buf, msOfDay % 1000, 3);
+        buf.append('Z');
+    }
+
     /**
      * Formats a <code>Calendar</code> value into an ISO8601-compliant
      * date/time string.
@@ -293,6 +417,75 @@ public final class ISO8601 {
         return year;
     }
 
+    /**
+     * The last year in which <code>GregorianCalendar</code> may still apply Julian rules (cutover is 1582-10-15).
+     */
+    private static final int GREGORIAN_CUTOVER_YEAR = 1582;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Reads a fixed-width run of ASCII digits.
+     *
+     * @return the value, or -1 if any character is not a digit
+     */
+    private static int digits(String text, int start, int count) {
+        int n = 0;
+
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return ((year & 3) == 0 && (year % 100 != 0 || year % 400 == 0));
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return (isLeapYear(year) ? 29 : 28);
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    /**
+     * Days between 1970-01-01 and the given proleptic Gregorian date (days-from-civil).
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        int y = (month <= 2 ? year - 1 : year);
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+        return era * 146097L + doe - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    /**
+     * Appends a non-negative number zero-padded to exactly <code>precision</code> digits.
+     */
+    private static void appendDigits(StringBuilder buf, int n, int precision) {
+        for (int div = (precision == 4 ? 1000 : precision == 3 ? 100 : 10); div > 0; div /= 10) {
+            buf.append((char)('0' + (n / div) % 10));
+        }
+    }
+
     /**
      * Appends a zero-padded number to the given string buffer.
      * <p/>
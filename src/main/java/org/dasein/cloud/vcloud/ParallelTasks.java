@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch of independent vCloud calls on a bounded number of daemon threads and hands the results back to
+ * the submitting thread in completion order. Submission blocks once twice as many tasks as there are threads are
+ * outstanding, so a producer walking a large org cannot run arbitrarily far ahead of the workers. Instances are
+ * meant for a single batch and must be {@link #shutdown() shut down} when the batch is done.
+ */
+public class ParallelTasks<T> {
+    private final ExecutorService      executor;
+    private final CompletionService<T> completion;
+    private final int                  limit;
+    private int                        outstanding;
+
+    /**
+     * @param name the prefix for the names of the worker threads
+     * @param parallelism the maximum number of tasks to run at once
+     */
+    public ParallelTasks(@Nonnull final String name, int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, name + " " + count.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        completion = new ExecutorCompletionService<T>(executor);
+        limit = parallelism * 2;
+    }
+
+    /**
+     * Submits a task, first waiting for earlier tasks to finish if too many are outstanding.
+     * @param task the task to run
+     * @return the tasks that finished while this one was being submitted, which may be empty
+     * @throws InterruptedException the calling thread was interrupted while waiting for room
+     */
+    public @Nonnull List<Future<T>> submit(@Nonnull Callable<T> task) throws InterruptedException {
+        List<Future<T>> done = drain();
+
+        while( outstanding >= limit ) {
+            done.add(completion.take());
+            outstanding--;
+        }
+        completion.submit(task);
+        outstanding++;
+        return done;
+    }
+
+    /**
+     * @return the tasks that have finished since the last call, without waiting
+     */
+    public @Nonnull List<Future<T>> drain() {
+        ArrayList<Future<T>> done = new ArrayList<Future<T>>();
+        Future<T> f;
+
+        while( outstanding > 0 && (f = completion.poll()) != null ) {
+            done.add(f);
+            outstanding--;
+        }
+        return done;
+    }
+
+    /**
+     * Waits for the next task to finish.
+     * @return the finished task, or <code>null</code> if no tasks are outstanding
+     * @throws InterruptedException the calling thread was interrupted while waiting
+     */
+    public @Nullable Future<T> take() throws InterruptedException {
+        if( outstanding < 1 ) {
+            return null;
+        }
+        Future<T> f = completion.take();
+
+        outstanding--;
+        return f;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
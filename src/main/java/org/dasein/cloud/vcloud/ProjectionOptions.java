@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Selects which of the expensive facets of a resource a listing should populate. Facets that are not requested
+ * cost neither requests nor parsing, and the corresponding fields of the listed resources are left at their
+ * defaults. Not every facet applies to every resource; facets that do not apply are ignored.
+ * <pre>
+ *     ProjectionOptions.getInstance(Facet.ADDRESSES)
+ *     ProjectionOptions.getInstance().without(Facet.METADATA)
+ * </pre>
+ */
+public class ProjectionOptions {
+    public enum Facet {
+        /**
+         * Tags backed by vCloud metadata, along with the launch provenance recorded there.
+         */
+        METADATA,
+        /**
+         * IP addresses and network membership of VMs, and the IP configuration of networks.
+         */
+        ADDRESSES,
+        /**
+         * Hardware and guest details: the product of a VM or the template document behind an image.
+         */
+        HARDWARE,
+        /**
+         * The virtual machine to which a volume is attached.
+         */
+        ATTACHMENTS
+    }
+
+    /**
+     * @return options populating every facet, which is what the plain list methods do
+     */
+    static public @Nonnull ProjectionOptions getInstance() {
+        return new ProjectionOptions(EnumSet.allOf(Facet.class));
+    }
+
+    /**
+     * @param facets the facets to populate
+     * @return options populating only the given facets
+     */
+    static public @Nonnull ProjectionOptions getInstance(@Nonnull Facet ... facets) {
+        EnumSet<Facet> set = EnumSet.noneOf(Facet.class);
+
+        Collections.addAll(set, facets);
+        return new ProjectionOptions(set);
+    }
+
+    private final EnumSet<Facet> facets;
+
+    private ProjectionOptions(@Nonnull EnumSet<Facet> facets) {
+        this.facets = facets;
+    }
+
+    public @Nonnull Set<Facet> getFacets() {
+        return Collections.unmodifiableSet(facets);
+    }
+
+    public boolean includes(@Nonnull Facet facet) {
+        return facets.contains(facet);
+    }
+
+    /**
+     * @return true if every facet is populated
+     */
+    public boolean isComplete() {
+        return (facets.size() == Facet.values().length);
+    }
+
+    public @Nonnull ProjectionOptions with(@Nonnull Facet facet) {
+        EnumSet<Facet> set = EnumSet.copyOf(facets);
+
+        set.add(facet);
+        return new ProjectionOptions(set);
+    }
+
+    public @Nonnull ProjectionOptions without(@Nonnull Facet facet) {
+        EnumSet<Facet> set = EnumSet.copyOf(facets);
+
+        set.remove(facet);
+        return new ProjectionOptions(set);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return facets.toString();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * A histogram of how long one kind of task takes, used to decide when to poll a running task of that kind next.
+ * Durations fall into buckets growing by a quarter of a doubling each, from 250 ms up to about 2.3 hours. Once enough
+ * tasks have been recorded, each poll is placed where another tenth of the recorded tasks would have finished, which
+ * puts polls close together around the usual completion time and far apart before it. A task outlasting the recorded
+ * ones is polled every one to ten seconds, growing with how long it has run, as before anything was learned. Older
+ * samples are halved away as new ones arrive, so the histogram follows changes in the cloud.
+ */
+final class TaskDurations {
+    static private final int    BUCKETS      = 60;
+    static private final long[] UPPER_BOUNDS = new long[BUCKETS];
+    static private final int    MIN_SAMPLES  = 5;
+    static private final int    MAX_SAMPLES  = 1000;
+    static private final double STEP         = 0.1;
+
+    static final long MIN_DELAY = 250L;
+    static final long MAX_DELAY = 60000L;
+
+    /**
+     * The bounds on the delay for a task running longer than the recorded ones, which match the back-off used before
+     * any durations are known.
+     */
+    static final long OVERDUE_MIN_DELAY = 1000L;
+    static final long OVERDUE_MAX_DELAY = 10000L;
+
+    static {
+        for( int i=0; i<BUCKETS; i++ ) {
+            UPPER_BOUNDS[i] = Math.round(250.0 * Math.pow(2.0, (i + 1)/4.0));
+        }
+    }
+
+    private final int[] counts = new int[BUCKETS];
+    private int         total;
+
+    static private long getUpperBound(int bucket) {
+        return UPPER_BOUNDS[bucket];
+    }
+
+    static private long getLowerBound(int bucket) {
+        return (bucket == 0 ? 0L : getUpperBound(bucket - 1));
+    }
+
+    /**
+     * @param millis how long a finished task took, in milliseconds
+     */
+    synchronized void record(@Nonnegative long millis) {
+        int bucket = 0;
+
+        while( bucket < BUCKETS - 1 && millis >= getUpperBound(bucket) ) {
+            bucket++;
+        }
+        counts[bucket]++;
+        total++;
+        if( total >= MAX_SAMPLES ) {
+            total = 0;
+            for( int i=0; i<BUCKETS; i++ ) {
+                counts[i] = counts[i] / 2;
+                total += counts[i];
+            }
+        }
+    }
+
+    /**
+     * @param elapsed how long the task has been running, in milliseconds
+     * @return how long to wait before polling the task again, in milliseconds, or -1 if too few tasks of this kind
+     * have been recorded to say
+     */
+    synchronized long getPollDelay(@Nonnegative long elapsed) {
+        if( total < MIN_SAMPLES ) {
+            return -1L;
+        }
+        double target = getFraction(elapsed) + STEP;
+
+        if( target >= 1.0 ) {
+            // past the bulk of the recorded tasks, this one is running long and could finish at any moment
+            return Math.max(OVERDUE_MIN_DELAY, Math.min(OVERDUE_MAX_DELAY, elapsed/4));
+        }
+        long delay = getQuantile(target) - elapsed;
+
+        return Math.max(MIN_DELAY, Math.min(MAX_DELAY, delay));
+    }
+
+    /**
+     * @param millis a duration
+     * @return the fraction of recorded tasks that finished within the duration, interpolating within its bucket
+     */
+    private double getFraction(long millis) {
+        long seen = 0;
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            long lo = getLowerBound(i);
+            long hi = getUpperBound(i);
+
+            if( millis < hi || i == BUCKETS - 1 ) {
+                double within = Math.min(1.0, (double)(millis - lo)/(hi - lo));
+
+                return (seen + counts[i] * within)/total;
+            }
+            seen += counts[i];
+        }
+        return 1.0;
+    }
+
+    /**
+     * @param fraction a fraction of the recorded tasks, less than 1
+     * @return the duration within which that fraction of the tasks finished, interpolating within its bucket
+     */
+    private long getQuantile(double fraction) {
+        double wanted = fraction * total;
+        long seen = 0;
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            if( counts[i] > 0 && seen + counts[i] > wanted ) {
+                long lo = getLowerBound(i);
+                long hi = getUpperBound(i);
+
+                return lo + (long)((hi - lo) * ((wanted - seen)/counts[i]));
+            }
+            seen += counts[i];
+        }
+        return getUpperBound(BUCKETS - 1);
+    }
+}
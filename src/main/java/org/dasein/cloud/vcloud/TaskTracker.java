@@ -0,0 +1,954 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.util.CalendarWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Watches every outstanding vCloud task of an account on threads of its own, timed by one scheduler thread shared by
+ * all accounts, rather than each caller sleeping in its own polling loop. Each caller tracking a task gets a
+ * {@link Future} of its own that completes with the final task document on success and fails with the task's error
+ * otherwise. Tasks due for a poll are refreshed together on each cycle, and each task is polled on the schedule its
+ * kind of task has been seen to need (see {@link TaskDurations}); until enough tasks of a kind have finished, it backs
+ * off from one to ten seconds between polls. Cancelling a future ends only that caller's wait; once every caller has
+ * given up, the task stops being watched and, if any of them allowed interruption, vCloud is asked to cancel the task
+ * itself. A task that cannot be read twenty times in a row, or is still running after twelve hours, is given up on and
+ * its future failed.
+ * <p>
+ * On vCloud 1.5 and later, the status of the due tasks is read with one task query per hundred tasks. Only a task
+ * the query reports finished, or does not report at all, is then fetched on its own, for its final document and error.
+ * </p>
+ * <p>
+ * Where vCloud Director publishes notifications, for example to an AMQP broker, a consumer passing them to
+ * {@link vCloud#onNotification(String)} has finished tasks confirmed as soon as they finish. Polling carries on
+ * regardless, so a lost notification only costs latency.
+ * </p>
+ */
+final class TaskTracker {
+    static private final Logger logger = vCloud.getLogger(TaskTracker.class);
+
+    static private final Pattern TASK   = Pattern.compile("<(?:[\\w.-]+:)?Task[\\s>/][^>]*>");
+    static private final Pattern STATUS = Pattern.compile("\\sstatus\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern HREF   = Pattern.compile("\\shref\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern ID     = Pattern.compile("\\sid\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern TYPE   = Pattern.compile("\\stype\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern OPERATION  = Pattern.compile("\\soperationName\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern START_TIME = Pattern.compile("\\sstartTime\\s*=\\s*[\"']([^\"']*)[\"']");
+    static private final Pattern END_TIME   = Pattern.compile("\\sendTime\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    static private final Pattern NOTIFICATION = Pattern.compile("<(?:[\\w.-]+:)?Notification[\\s>/][^>]*>");
+    static private final Pattern LINK         = Pattern.compile("<(?:[\\w.-]+:)?(?:Entity)?Link[\\s>/][^>]*>");
+
+    /**
+     * The number of tasks whose status is asked for in one query, which keeps the filter well within URL limits.
+     */
+    static private final int QUERY_BATCH = 100;
+
+    /**
+     * The number of kinds of task whose durations are learned, which bounds the memory a tracker holds.
+     */
+    static private final int MAX_OPERATIONS = 256;
+
+    /**
+     * The number of reads of a task in a row that may fail before the task is given up on and its future failed.
+     */
+    static private final int MAX_FAILURES = 20;
+
+    /**
+     * How long a task is watched before it is given up on and its future failed.
+     */
+    static private final long MAX_WATCH_AGE = 12L * CalendarWrapper.HOUR;
+
+    /**
+     * Reads the current document of one task.
+     */
+    interface TaskReader {
+        /**
+         * @param task the task to read
+         * @return the task document, or <code>null</code> if it could not be read
+         * @throws Exception an error occurred reading the task
+         */
+        @Nullable String read(@Nonnull TrackedTask task) throws Exception;
+    }
+
+    /**
+     * Reads a task from vCloud through the connection it is being watched with.
+     */
+    static private final TaskReader VCLOUD_READER = new TaskReader() {
+        public @Nullable String read(@Nonnull TrackedTask task) throws Exception {
+            vCloud p = task.getProvider();
+
+            return (p == null ? null : new vCloudMethod(p).get("task", task.getTaskId()));
+        }
+    };
+
+    static private final ConcurrentHashMap<String,TaskTracker> trackers = new ConcurrentHashMap<String, TaskTracker>();
+
+    /**
+     * Only times the poll cycles of every tracker; each cycle is handed to its own tracker's threads to run.
+     */
+    static private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vCloud Task Tracker");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @param provider the cloud provider whose account owns the tasks
+     * @return the tracker for the provider's endpoint and account
+     */
+    static @Nonnull TaskTracker getInstance(@Nonnull vCloud provider) {
+        ProviderContext ctx = provider.getContext();
+        String key = (ctx == null ? "" : ctx.getCloud().getEndpoint() + "|" + ctx.getAccountNumber());
+        TaskTracker tracker = trackers.get(key);
+
+        if( tracker == null ) {
+            tracker = new TaskTracker(provider.getListParallelism(), VCLOUD_READER);
+            TaskTracker existing = trackers.putIfAbsent(key, tracker);
+
+            if( existing != null ) {
+                tracker = existing;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * A task being watched. Completion, failure and cancellation each happen at most once, whichever comes first.
+     * The task is read through the connection of the caller that started watching it, which is let go of as soon
+     * as the task is done. Every caller waiting on the task holds a {@link Waiter} of its own, and the watch is
+     * cancelled only once the last of them has given up.
+     */
+    class TrackedTask {
+        private final String            taskId;
+        private final TaskDurations     durations;
+        private final long              started;
+        private final CountDownLatch    latch = new CountDownLatch(1);
+        private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+        private String                  result;
+        private CloudException          error;
+        private boolean                 cancelled;
+        private boolean                 abort;
+        private int                     passCount;
+        private int                     failures;
+        private volatile long           nextPoll;
+        private volatile vCloud         provider;
+
+        TrackedTask(@Nullable vCloud provider, @Nonnull String taskId, @Nullable TaskDurations durations) {
+            this.provider = provider;
+            this.taskId = taskId;
+            this.durations = durations;
+            this.started = System.currentTimeMillis();
+            backOff();
+        }
+
+        @Nonnull String getTaskId() {
+            return taskId;
+        }
+
+        /**
+         * @return the connection the task is read through, or <code>null</code> once the task is done
+         */
+        @Nullable vCloud getProvider() {
+            return provider;
+        }
+
+        /**
+         * Notes a read of the task that failed.
+         * @return true if too many reads in a row have now failed to carry on watching the task
+         */
+        synchronized boolean readFailed() {
+            return (++failures >= MAX_FAILURES);
+        }
+
+        synchronized void readSucceeded() {
+            failures = 0;
+        }
+
+        boolean isExpired(long now) {
+            return (now - started >= MAX_WATCH_AGE);
+        }
+
+        void backOff() {
+            long now = System.currentTimeMillis();
+            long delay = (durations == null ? -1L : durations.getPollDelay(now - started));
+
+            passCount++;
+            if( delay < 0L ) {
+                delay = Math.min(passCount, 10) * CalendarWrapper.SECOND;
+            }
+            nextPoll = now + delay;
+        }
+
+        /**
+         * Learns how long the task took from its final document, or failing that, from when it was first watched.
+         * @param tag the start tag of the final task document
+         */
+        void recordDuration(@Nonnull String tag) {
+            if( durations == null ) {
+                return;
+            }
+            String start = getAttribute(START_TIME, tag);
+            String end = getAttribute(END_TIME, tag);
+            long startMillis = (start == null ? -1L : ISO8601.parseMillis(start, -1L));
+            long endMillis = (end == null ? -1L : ISO8601.parseMillis(end, -1L));
+
+            if( startMillis > 0L && endMillis >= startMillis ) {
+                durations.record(endMillis - startMillis);
+            }
+            else {
+                durations.record(System.currentTimeMillis() - started);
+            }
+        }
+
+        void expedite() {
+            nextPoll = 0L;
+        }
+
+        boolean isDue(long now) {
+            return (nextPoll <= now);
+        }
+
+        synchronized boolean complete(@Nullable String xml) {
+            if( latch.getCount() < 1 ) {
+                return false;
+            }
+            result = xml;
+            finish();
+            return true;
+        }
+
+        synchronized boolean fail(@Nonnull CloudException e) {
+            if( latch.getCount() < 1 ) {
+                return false;
+            }
+            error = e;
+            finish();
+            return true;
+        }
+
+        private void finish() {
+            provider = null;
+            latch.countDown();
+            tasks.remove(taskId, this);
+            for( Waiter w : waiters ) {
+                w.release();
+            }
+            waiters.clear();
+        }
+
+        /**
+         * Adds a caller waiting on the task.
+         * @return the caller's future, or <code>null</code> if the watch has just been given up and must be started
+         * over
+         */
+        synchronized @Nullable Waiter join() {
+            if( cancelled ) {
+                return null;
+            }
+            Waiter w = new Waiter(this);
+
+            if( latch.getCount() < 1 ) {
+                w.release();
+            }
+            else {
+                waiters.add(w);
+            }
+            return w;
+        }
+
+        /**
+         * Removes a caller that has given up waiting. The last caller to leave cancels the watch and, if any caller
+         * leaving allowed interruption, asks vCloud to cancel the task itself.
+         * @param w the caller's future
+         * @param abortTask true if the caller allows the task to be cancelled in vCloud
+         */
+        void leave(@Nonnull Waiter w, boolean abortTask) {
+            vCloud p;
+
+            synchronized( this ) {
+                if( !waiters.remove(w) ) {
+                    return;
+                }
+                abort = (abort || abortTask);
+                if( !waiters.isEmpty() || latch.getCount() < 1 ) {
+                    return;
+                }
+                p = (abort ? provider : null);
+                cancelled = true;
+                finish();
+            }
+            if( p != null ) {
+                try {
+                    vCloudMethod method = new vCloudMethod(p);
+
+                    method.post("cancel", method.toURL("task", taskId) + "/action/cancel", null, null);
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to cancel task " + taskId + ": " + t.getMessage());
+                }
+            }
+        }
+
+        boolean isDone() {
+            return (latch.getCount() < 1);
+        }
+
+        synchronized String getResult() throws ExecutionException {
+            if( cancelled ) {
+                throw new CancellationException("Task " + taskId + " is no longer being watched");
+            }
+            if( error != null ) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return "Task " + taskId;
+        }
+    }
+
+    /**
+     * One caller's wait on a watched task. Cancelling it ends that caller's wait alone, leaving other callers
+     * waiting on the same task undisturbed.
+     */
+    class Waiter implements Future<String> {
+        private final TrackedTask    task;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean     cancelled;
+
+        Waiter(@Nonnull TrackedTask task) {
+            this.task = task;
+        }
+
+        void release() {
+            latch.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized( this ) {
+                if( latch.getCount() < 1 ) {
+                    return false;
+                }
+                cancelled = true;
+                latch.countDown();
+            }
+            task.leave(this, mayInterruptIfRunning);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return (latch.getCount() < 1);
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public String get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if( !latch.await(timeout, unit) ) {
+                throw new TimeoutException(task + " is still running");
+            }
+            return getResult();
+        }
+
+        private String getResult() throws ExecutionException {
+            if( cancelled ) {
+                throw new CancellationException("No longer waiting on " + task);
+            }
+            return task.getResult();
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return task.toString();
+        }
+    }
+
+    /**
+     * A future for a response that holds no task to wait on, or whose task had finished when the response was sent.
+     */
+    static private class Finished implements Future<String> {
+        private final String         xml;
+        private final CloudException error;
+
+        Finished(@Nullable String xml, @Nullable CloudException error) {
+            this.xml = xml;
+            this.error = error;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public String get() throws ExecutionException {
+            if( error != null ) {
+                throw new ExecutionException(error);
+            }
+            return xml;
+        }
+
+        @Override
+        public String get(long timeout, @Nonnull TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+
+    private final ConcurrentHashMap<String,TrackedTask>   tasks     = new ConcurrentHashMap<String, TrackedTask>();
+    private final ConcurrentHashMap<String,TaskDurations> durations = new ConcurrentHashMap<String, TaskDurations>();
+    private final ThreadPoolExecutor                    cycles;
+    private final ThreadPoolExecutor                    fetches;
+    private final TaskReader                            reader;
+    private long                                        scheduledAt = Long.MAX_VALUE;
+
+    /**
+     * @param parallelism the maximum number of tasks fetched at once
+     * @param reader reads the tasks that are fetched on their own
+     */
+    TaskTracker(int parallelism, @Nonnull TaskReader reader) {
+        this.reader = reader;
+        // one cycle runs at a time, and the threads of both pools die off while no tasks are being watched
+        cycles = newPool("vCloud Task Poll", 1);
+        fetches = newPool("vCloud Task Fetch", Math.max(1, parallelism));
+    }
+
+    static private @Nonnull ThreadPoolExecutor newPool(@Nonnull final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, name + " " + count.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Starts watching the task found in a vCloud response. The task is the first Task element of the response, which
+     * may be the whole response or embedded in the entity the response describes.
+     * @param provider the connection the task is read through while it is watched
+     * @param xml the response holding the task
+     * @return the future of the task, which is already done if the response holds no task or a finished one
+     */
+    @Nonnull Future<String> track(@Nonnull vCloud provider, @Nullable String xml) {
+        if( xml == null || xml.equals("") ) {
+            return new Finished(xml, null);
+        }
+        Matcher m = TASK.matcher(xml);
+
+        if( !m.find() ) {
+            return new Finished(xml, null);
+        }
+        String tag = m.group();
+        String status = getAttribute(STATUS, tag);
+        String href = getAttribute(HREF, tag);
+
+        if( status != null && isFinished(status) ) {
+            CloudException error = toError(provider, status, xml, href);
+
+            return new Finished(xml, error);
+        }
+        if( href == null ) {
+            return new Finished(xml, null);
+        }
+        return track(provider, provider.toID(href), getAttribute(OPERATION, tag));
+    }
+
+    /**
+     * Starts watching a running task.
+     * @param provider the connection the task is read through while it is watched, or <code>null</code> if the
+     * tracker's reader needs none
+     * @param taskId the ID of the task
+     * @param operation the operation name of the task, if known
+     * @return a future of the task for this caller alone, which may share its watch with other callers
+     */
+    @Nonnull Future<String> track(@Nullable vCloud provider, @Nonnull String taskId, @Nullable String operation) {
+        while( true ) {
+            TrackedTask task = new TrackedTask(provider, taskId, getDurations(operation));
+            TrackedTask existing = tasks.putIfAbsent(taskId, task);
+
+            if( existing == null ) {
+                schedule(task.nextPoll - System.currentTimeMillis());
+                existing = task;
+            }
+            Waiter w = existing.join();
+
+            if( w != null ) {
+                return w;
+            }
+        }
+    }
+
+    /**
+     * Applies the latest task document to the task it describes.
+     * @param task the task that was refreshed
+     * @param xml the task document, or <code>null</code> if it could not be read this time
+     */
+    void update(@Nonnull TrackedTask task, @Nullable String xml) {
+        if( xml == null || xml.equals("") ) {
+            if( task.readFailed() ) {
+                task.fail(new CloudException("Unable to read task " + task.getTaskId() + " after " + MAX_FAILURES + " attempts"));
+            }
+            else {
+                task.backOff();
+            }
+            return;
+        }
+        task.readSucceeded();
+        Matcher m = TASK.matcher(xml);
+
+        if( !m.find() ) {
+            // the old polling loop treated an unreadable task as done, and so does this
+            task.complete(xml);
+            return;
+        }
+        String tag = m.group();
+        String status = getAttribute(STATUS, tag);
+
+        if( status == null || !isFinished(status) ) {
+            task.backOff();
+            return;
+        }
+        CloudException error = toError(task.getProvider(), status, xml, task.getTaskId());
+
+        if( error == null ) {
+            task.recordDuration(tag);
+            task.complete(xml);
+        }
+        else {
+            task.fail(error);
+        }
+    }
+
+    /**
+     * @param operation the kind of task, as given by the operation name of the task
+     * @return the durations learned for that kind of task, or <code>null</code> if they are not being learned
+     */
+    private @Nullable TaskDurations getDurations(@Nullable String operation) {
+        if( operation == null || operation.equals("") ) {
+            return null;
+        }
+        TaskDurations d = durations.get(operation);
+
+        if( d == null ) {
+            if( durations.size() >= MAX_OPERATIONS ) {
+                return null;
+            }
+            d = new TaskDurations();
+            TaskDurations existing = durations.putIfAbsent(operation, d);
+
+            if( existing != null ) {
+                d = existing;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Makes sure a poll cycle runs within the given delay. A cycle already scheduled sooner is left alone; one
+     * scheduled later is superseded, and polls without scheduling any further cycles when it runs.
+     * @param delay the delay in milliseconds
+     */
+    private synchronized void schedule(long delay) {
+        delay = Math.max(100L, delay);
+        final long at = System.currentTimeMillis() + delay;
+
+        if( scheduledAt <= at ) {
+            return;
+        }
+        scheduledAt = at;
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                cycles.execute(new Runnable() {
+                    public void run() {
+                        poll(at);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(long at) {
+        boolean current;
+
+        synchronized( this ) {
+            current = (scheduledAt == at);
+            if( current ) {
+                scheduledAt = Long.MAX_VALUE;
+            }
+        }
+        long now = System.currentTimeMillis();
+        ArrayList<TrackedTask> due = new ArrayList<TrackedTask>();
+
+        for( TrackedTask task : tasks.values() ) {
+            if( task.isExpired(now) ) {
+                task.fail(new CloudException("Gave up waiting on task " + task.getTaskId() + " after " + (MAX_WATCH_AGE/CalendarWrapper.HOUR) + " hours"));
+            }
+            else if( task.isDue(now) ) {
+                due.add(task);
+            }
+        }
+        if( !due.isEmpty() ) {
+            try {
+                refresh(due);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to poll " + due.size() + " vCloud tasks: " + t.getMessage());
+                for( TrackedTask task : due ) {
+                    if( task.isDue(now) ) {
+                        task.backOff();
+                    }
+                }
+            }
+        }
+        long next = Long.MAX_VALUE;
+
+        for( TrackedTask task : tasks.values() ) {
+            next = Math.min(next, task.nextPoll);
+        }
+        if( current && next < Long.MAX_VALUE ) {
+            schedule(next - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Polls the tasks a notification reports finished at once, rather than at their next scheduled poll. The
+     * notification is only a hint: each task is still confirmed by reading it, so a late, duplicate or spurious
+     * notification costs one request and nothing more.
+     * @param notification the XML body of a vCloud Director notification
+     * @return the number of watched tasks the notification concerned
+     */
+    int onNotification(@Nonnull String notification) {
+        int count = 0;
+
+        for( String id : getFinishedTaskIds(notification) ) {
+            TrackedTask task = tasks.get(id);
+
+            if( task == null ) {
+                // compatibility mode IDs carry the resource type
+                task = tasks.get("/task/" + id);
+            }
+            if( task != null ) {
+                task.expedite();
+                count++;
+            }
+        }
+        if( count > 0 ) {
+            schedule(0L);
+        }
+        return count;
+    }
+
+    /**
+     * Finds the tasks a vCloud Director notification reports as finished. Tasks are named either by a link to the
+     * task or by an entity link carrying its URN. Notifications of tasks being created or started are ignored, as
+     * are notifications about any other kind of entity.
+     * @param notification the XML body of the notification
+     * @return the IDs of the finished tasks, without any resource type prefix
+     */
+    static @Nonnull List<String> getFinishedTaskIds(@Nonnull String notification) {
+        ArrayList<String> ids = new ArrayList<String>();
+        Matcher m = NOTIFICATION.matcher(notification);
+
+        if( !m.find() ) {
+            return ids;
+        }
+        String type = getAttribute(TYPE, m.group());
+
+        if( type != null && (type.endsWith("/create") || type.endsWith("/start")) ) {
+            return ids;
+        }
+        m = LINK.matcher(notification);
+        while( m.find() ) {
+            String tag = m.group();
+            String linkType = getAttribute(TYPE, tag);
+
+            if( linkType == null ) {
+                continue;
+            }
+            String id = null;
+
+            if( linkType.endsWith("vcloud.task+xml") ) {
+                String href = getAttribute(HREF, tag);
+
+                if( href != null ) {
+                    id = href.substring(href.lastIndexOf('/') + 1);
+                }
+            }
+            else if( linkType.endsWith(":task") ) {
+                String urn = getAttribute(ID, tag);
+
+                if( urn != null ) {
+                    id = urn.substring(urn.lastIndexOf(':') + 1);
+                }
+            }
+            if( id != null && !id.equals("") && !ids.contains(id) ) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the current state of the given tasks.
+     * @param due the tasks to refresh
+     * @throws InterruptedException the poll thread was interrupted while waiting
+     */
+    private void refresh(@Nonnull List<TrackedTask> due) throws InterruptedException {
+        List<TrackedTask> remaining = due;
+        vCloud provider = null;
+
+        // any of the callers still waiting can query for all of them, as they share the account
+        for( TrackedTask task : due ) {
+            provider = task.getProvider();
+            if( provider != null ) {
+                break;
+            }
+        }
+        if( provider != null ) {
+            try {
+                vCloudMethod method = new vCloudMethod(provider);
+
+                if( method.isQuerySupported() ) {
+                    remaining = query(provider, method, due);
+                }
+            }
+            catch( Throwable t ) {
+                logger.debug("Unable to query the status of " + due.size() + " tasks, polling them one by one: " + t.getMessage());
+            }
+        }
+        fetch(remaining);
+    }
+
+    /**
+     * Reads the status of the given tasks in batches from the query service, backing off those still running.
+     * @param provider the connection the query is made through
+     * @param method the method used to access vCloud
+     * @param due the tasks to refresh
+     * @return the tasks that must be fetched on their own, because they have finished or were not in the results
+     * @throws CloudException an error occurred in vCloud processing the query
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull List<TrackedTask> query(@Nonnull vCloud provider, @Nonnull vCloudMethod method, @Nonnull List<TrackedTask> due) throws CloudException, InternalException {
+        ArrayList<TrackedTask> remaining = new ArrayList<TrackedTask>();
+
+        for( int i=0; i<due.size(); i += QUERY_BATCH ) {
+            List<TrackedTask> batch = due.subList(i, Math.min(due.size(), i + QUERY_BATCH));
+            StringBuilder filter = new StringBuilder();
+
+            for( TrackedTask task : batch ) {
+                filter.append(filter.length() == 0 ? "(" : ",").append("id==").append(task.getTaskId());
+            }
+            filter.append(")");
+            vCloudMethod.QueryPage page = method.queryPage("task", filter.toString(), "status", 1, QUERY_BATCH);
+
+            if( page == null ) {
+                // tasks may not be queried with these credentials
+                remaining.addAll(due.subList(i, due.size()));
+                return remaining;
+            }
+            HashMap<String,String> status = new HashMap<String, String>();
+
+            for( vCloudMethod.QueryRecord record : page.records ) {
+                String href = record.getHref();
+                String s = record.get("status");
+
+                if( href != null && s != null ) {
+                    status.put(provider.toID(href), s);
+                }
+            }
+            for( TrackedTask task : batch ) {
+                String s = status.get(task.getTaskId());
+
+                if( s == null || isFinished(s) ) {
+                    remaining.add(task);
+                }
+                else {
+                    task.readSucceeded();
+                    task.backOff();
+                }
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Reads the current state of the given tasks one by one, fetching them concurrently on the tracker's fetch
+     * threads and waiting for all of them before the cycle ends.
+     * @param tasks the tasks to fetch
+     * @throws InterruptedException the poll thread was interrupted while waiting
+     */
+    private void fetch(@Nonnull List<TrackedTask> tasks) throws InterruptedException {
+        if( tasks.isEmpty() ) {
+            return;
+        }
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+
+        try {
+            for( final TrackedTask task : tasks ) {
+                if( task.isDone() ) {
+                    // done since the cycle began
+                    continue;
+                }
+                running.add(fetches.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        String xml = null;
+
+                        try {
+                            xml = reader.read(task);
+                        }
+                        catch( Throwable t ) {
+                            logger.debug("Unable to poll task " + task.getTaskId() + ": " + t.getMessage());
+                        }
+                        update(task, xml);
+                        return null;
+                    }
+                }));
+            }
+            for( Future<?> f : running ) {
+                try {
+                    f.get();
+                }
+                catch( ExecutionException e ) {
+                    logger.warn("Unable to poll a vCloud task: " + e.getCause().getMessage());
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            for( Future<?> f : running ) {
+                f.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    static private boolean isFinished(@Nonnull String status) {
+        return (status.equals("success") || status.equals("error") || status.equals("aborted") || status.equals("canceled"));
+    }
+
+    /**
+     * @param provider the connection used to read the error, or <code>null</code> to report the status alone
+     * @param status the final status of a task
+     * @param xml the document holding the task
+     * @param taskId the task, for messages
+     * @return the error the task ended with, or <code>null</code> if it succeeded
+     */
+    static private @Nullable CloudException toError(@Nullable vCloud provider, @Nonnull String status, @Nonnull String xml, @Nullable String taskId) {
+        if( status.equals("success") ) {
+            return null;
+        }
+        if( status.equals("error") && provider != null ) {
+            try {
+                vCloudMethod method = new vCloudMethod(provider);
+                Document doc = method.parseXML(xml);
+                String docElementTagName = doc.getDocumentElement().getTagName();
+                String nsString = "";
+                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                NodeList tasks = doc.getElementsByTagName(nsString + "Task");
+
+                if( tasks.getLength() > 0 ) {
+                    NodeList elements = tasks.item(0).getChildNodes();
+
+                    for( int i=0; i<elements.getLength(); i++ ) {
+                        Node element = elements.item(i);
+
+                        if( element.getNodeName().endsWith("Error") && element.hasAttributes() ) {
+                            method.parseError(element);
+                        }
+                    }
+                }
+            }
+            catch( CloudException e ) {
+                return e;
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to read the error of task " + taskId + ": " + t.getMessage());
+            }
+            return new CloudException("Task " + taskId + " failed");
+        }
+        return new CloudException("Task " + taskId + " was " + status);
+    }
+
+    static private @Nullable String getAttribute(@Nonnull Pattern attribute, @Nonnull String tag) {
+        Matcher m = attribute.matcher(tag);
+
+        return (m.find() ? m.group(1) : null);
+    }
+}
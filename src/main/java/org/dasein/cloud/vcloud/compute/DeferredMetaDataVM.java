@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.dasein.cloud.compute.VirtualMachine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * A virtual machine whose vCloud metadata is only fetched the first time something derived from it is read: a tag
+ * that was not already known, the creation timestamp or the launch image. Callers who never look at those do not
+ * pay a metadata request per VM.
+ * <p>
+ * The deferred load runs on whichever thread first reads such a value, possibly long after the listing, through
+ * the {@link vAppSupport} (and so the provider and its context) that built the VM. If that provider has been
+ * closed by then, or the request fails, the failure is logged and the VM simply has no further tags; it is not
+ * retried. Callers that need the tags reliably should list with metadata loaded eagerly. The VM cache never keeps
+ * one of these: it stores a detached copy, and a VM it hands out defers to the {@link vAppSupport} asking for it.
+ * </p>
+ */
+class DeferredMetaDataVM extends VirtualMachine {
+    private transient vAppSupport support;
+
+    DeferredMetaDataVM(@Nonnull vAppSupport support) {
+        this.support = support;
+    }
+
+    private synchronized void loadMetaData() {
+        vAppSupport s = support;
+
+        if( s != null ) {
+            // cleared first as loading reads tags back through this object
+            support = null;
+            s.loadMetaData(this);
+        }
+    }
+
+    /**
+     * @return true once the metadata has been loaded, or loading it has been attempted
+     */
+    synchronized boolean isMetaDataLoaded() {
+        return (support == null);
+    }
+
+    /**
+     * @return the creation timestamp as known so far, without loading the metadata
+     */
+    long getKnownCreationTimestamp() {
+        return super.getCreationTimestamp();
+    }
+
+    /**
+     * @return the launch image as known so far, without loading the metadata
+     */
+    @Nonnull String getKnownProviderMachineImageId() {
+        return super.getProviderMachineImageId();
+    }
+
+    /**
+     * @return the tags known so far, without loading the metadata
+     */
+    @Nonnull Map<String,String> getKnownTags() {
+        return super.getTags();
+    }
+
+    @Override
+    public long getCreationTimestamp() {
+        if( super.getCreationTimestamp() < 1L ) {
+            loadMetaData();
+        }
+        return super.getCreationTimestamp();
+    }
+
+    @Override
+    public @Nonnull String getProviderMachineImageId() {
+        if( "unknown".equals(super.getProviderMachineImageId()) ) {
+            loadMetaData();
+        }
+        return super.getProviderMachineImageId();
+    }
+
+    @Override
+    public @Nullable Object getTag(@Nonnull String tag) {
+        Object value = super.getTag(tag);
+
+        // tags set while building the VM, such as its parent vApp, need no metadata request
+        if( value == null ) {
+            loadMetaData();
+            value = super.getTag(tag);
+        }
+        return value;
+    }
+
+    @Override
+    public @Nonnull Map<String,String> getTags() {
+        loadMetaData();
+        return super.getTags();
+    }
+}
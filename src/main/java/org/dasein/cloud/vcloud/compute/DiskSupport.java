@@ -37,6 +37,8 @@ import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.TagUtils;
+import org.dasein.cloud.vcloud.ProjectionOptions;
+import org.dasein.cloud.vcloud.ProjectionOptions.Facet;
 import org.dasein.cloud.vcloud.vCloud;
 import org.dasein.cloud.vcloud.vCloudMethod;
 import org.dasein.util.CalendarWrapper;
@@ -50,7 +52,9 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Implements support for disks in vCloud 5.1 and beyond.
@@ -337,8 +341,19 @@ public class DiskSupport implements VolumeSupport {
         APITrace.begin(getProvider(), "Volume.listVolumeStatus");
         try {
             ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+            vCloudMethod method = new vCloudMethod((vCloud)getProvider());
 
-            for( Volume v : listVolumes() ) {
+            if( method.isQuerySupported() ) {
+                Iterable<Volume> volumes = listVolumesFromQuery(method, false);
+
+                if( volumes != null ) {
+                    for( Volume v : volumes ) {
+                        status.add(new ResourceStatus(v.getProviderVolumeId(), v.getCurrentState()));
+                    }
+                    return status;
+                }
+            }
+            for( Volume v : listVolumes(ProjectionOptions.getInstance().without(Facet.ATTACHMENTS)) ) {
                 status.add(new ResourceStatus(v.getProviderVolumeId(), v.getCurrentState()));
             }
             return status;
@@ -350,9 +365,30 @@ public class DiskSupport implements VolumeSupport {
 
     @Override
     public @Nonnull Iterable<Volume> listVolumes() throws InternalException, CloudException {
+        return listVolumes(ProjectionOptions.getInstance());
+    }
+
+    /**
+     * Lists the independent disks in this region, populating only the requested facets. Without
+     * {@link Facet#ATTACHMENTS}, the virtual machine to which each disk is attached is not looked up.
+     * @param projection the facets to populate
+     * @return the volumes
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred processing the request in vCloud
+     */
+    public @Nonnull Iterable<Volume> listVolumes(@Nonnull ProjectionOptions projection) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.listVolumes");
         try {
             vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+            boolean withAttachments = projection.includes(Facet.ATTACHMENTS);
+
+            if( method.isQuerySupported() ) {
+                Iterable<Volume> volumes = listVolumesFromQuery(method, withAttachments);
+
+                if( volumes != null ) {
+                    return volumes;
+                }
+            }
             ArrayList<Volume> volumes = new ArrayList<Volume>();
 
             for( DataCenter dc : method.listDataCenters() ) {
@@ -386,7 +422,7 @@ public class DiskSupport implements VolumeSupport {
 
                                         if( type != null && type.getNodeValue().equals(method.getMediaTypeForDisk()) ) {
                                             Node href = resource.getAttributes().getNamedItem("href");
-                                            Volume volume = toVolume(dc.getProviderDataCenterId(), ((vCloud)getProvider()).toID(href.getNodeValue().trim()));
+                                            Volume volume = toVolume(dc.getProviderDataCenterId(), ((vCloud)getProvider()).toID(href.getNodeValue().trim()), withAttachments);
 
                                             if( volume != null ) {
                                                 volumes.add(volume);
@@ -406,6 +442,94 @@ public class DiskSupport implements VolumeSupport {
         }
     }
 
+    /**
+     * Lists independent disks from <code>disk</code> query records, falling back to <code>adminDisk</code> records
+     * for credentials that may only see the admin view.
+     * @param method the method used to access vCloud
+     * @param withAttachments true to resolve the virtual machine each disk is attached to
+     * @return the volumes, or <code>null</code> if neither query is permitted
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred processing the request in vCloud
+     */
+    private @Nullable Iterable<Volume> listVolumesFromQuery(@Nonnull vCloudMethod method, boolean withAttachments) throws InternalException, CloudException {
+        Iterable<vCloudMethod.QueryRecord> records = method.queryAll("disk", null, null);
+
+        if( records == null ) {
+            records = method.queryAll("adminDisk", null, null);
+            if( records == null ) {
+                return null;
+            }
+        }
+        HashSet<String> dcIds = new HashSet<String>();
+        HashSet<String> detached = new HashSet<String>();
+
+        for( DataCenter dc : method.listDataCenters() ) {
+            dcIds.add(dc.getProviderDataCenterId());
+        }
+        ArrayList<Volume> volumes = new ArrayList<Volume>();
+
+        for( vCloudMethod.QueryRecord record : records ) {
+            Volume volume = toVolume(record);
+
+            if( volume != null && dcIds.contains(volume.getProviderDataCenterId()) ) {
+                if( "false".equals(record.get("isAttached")) ) {
+                    detached.add(volume.getProviderVolumeId());
+                }
+                volumes.add(volume);
+            }
+        }
+        if( withAttachments && !volumes.isEmpty() ) {
+            Map<String,String> attachments = listAttachments(method);
+
+            for( Volume volume : volumes ) {
+                if( attachments != null ) {
+                    volume.setProviderVirtualMachineId(attachments.get(volume.getProviderVolumeId()));
+                }
+                else if( !detached.contains(volume.getProviderVolumeId()) ) {
+                    // no bulk view of the relationships, so ask only about the disks that might be attached
+                    loadAttachment(method, volume);
+                }
+            }
+        }
+        return volumes;
+    }
+
+    /**
+     * Maps every attached disk to its virtual machine using a single <code>vmDiskRelation</code> query.
+     * @param method the method used to access vCloud
+     * @return a map of disk IDs to virtual machine IDs, or <code>null</code> if the relation may not be queried
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred processing the request in vCloud
+     */
+    private @Nullable Map<String,String> listAttachments(@Nonnull vCloudMethod method) throws InternalException, CloudException {
+        Iterable<vCloudMethod.QueryRecord> records;
+
+        try {
+            records = method.queryAll("vmDiskRelation", null, null);
+            if( records == null ) {
+                records = method.queryAll("adminVmDiskRelation", null, null);
+            }
+        }
+        catch( CloudException e ) {
+            // older versions reject the type outright
+            return null;
+        }
+        if( records == null ) {
+            return null;
+        }
+        HashMap<String,String> attachments = new HashMap<String,String>();
+
+        for( vCloudMethod.QueryRecord record : records ) {
+            String disk = record.get("disk");
+            String vm = record.get("vm");
+
+            if( disk != null && vm != null ) {
+                attachments.put(((vCloud)getProvider()).toID(disk), ((vCloud)getProvider()).toID(vm));
+            }
+        }
+        return attachments;
+    }
+
     @Override
     public boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Volume.isSubscribed");
@@ -437,7 +561,7 @@ public class DiskSupport implements VolumeSupport {
     }
 
     private @Nonnull VolumeState toState(@Nonnull String status) {
-        if( status.equals("1") ) {
+        if( status.equals("1") || status.equalsIgnoreCase("RESOLVED") ) {
             return VolumeState.AVAILABLE;
         }
         else if( status.equals("0") ) {
@@ -446,8 +570,7 @@ public class DiskSupport implements VolumeSupport {
         return VolumeState.PENDING;
     }
 
-    private @Nullable Volume toVolume(@Nonnull String dcId, @Nonnull String volumeId) throws CloudException, InternalException {
-        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+    private @Nonnull Volume newVolume(@Nonnull String dcId, @Nonnull String volumeId) throws CloudException {
         Volume volume = new Volume();
 
         volume.setProviderVolumeId(volumeId);
@@ -457,6 +580,86 @@ public class DiskSupport implements VolumeSupport {
         volume.setProviderRegionId(getContext().getRegionId());
         volume.setProviderDataCenterId(dcId);
         volume.setRootVolume(false);
+        return volume;
+    }
+
+    private @Nullable Volume toVolume(@Nonnull vCloudMethod.QueryRecord record) throws CloudException, InternalException {
+        String href = record.getHref();
+        String vdc = record.get("vdc");
+
+        if( href == null || vdc == null ) {
+            return null;
+        }
+        Volume volume = newVolume(((vCloud)getProvider()).toID(vdc), ((vCloud)getProvider()).toID(href));
+        String value = record.get("name");
+
+        if( value != null ) {
+            volume.setName(value);
+        }
+        value = record.get("description");
+        if( value != null && !value.equals("") ) {
+            volume.setDescription(value);
+        }
+        try {
+            value = record.get("sizeB");
+            if( value != null ) {
+                volume.setSize(new Storage<org.dasein.util.uom.storage.Byte>(Long.parseLong(value), Storage.BYTE));
+            }
+            else {
+                value = record.get("sizeMb");
+                if( value != null ) {
+                    volume.setSize(new Storage<Megabyte>(Long.parseLong(value), Storage.MEGABYTE));
+                }
+            }
+        }
+        catch( NumberFormatException ignore ) {
+            // ignore
+        }
+        if( volume.getSize() == null ) {
+            volume.setSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+        }
+        value = record.get("status");
+        if( value != null ) {
+            volume.setCurrentState(toState(value));
+        }
+        if( volume.getName() == null ) {
+            volume.setName(volume.getProviderVolumeId());
+        }
+        if( volume.getDescription() == null ) {
+            volume.setDescription(volume.getName());
+        }
+        return volume;
+    }
+
+    private void loadAttachment(@Nonnull vCloudMethod method, @Nonnull Volume volume) {
+        try {
+            String xml = method.get("disk", volume.getProviderVolumeId() + "/attachedVms");
+
+            if( xml != null && !xml.equals("") ) {
+                Document doc = method.parseXML(xml);
+                String docElementTagName = doc.getDocumentElement().getTagName();
+                String nsString = "";
+                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                NodeList vms = doc.getElementsByTagName(nsString + "VmReference");
+
+                if( vms.getLength() > 0 ) {
+                    Node vm = vms.item(0);
+                    Node href = vm.getAttributes().getNamedItem("href");
+
+                    if( href != null ) {
+                        volume.setProviderVirtualMachineId(((vCloud)getProvider()).toID(href.getNodeValue().trim()));
+                    }
+                }
+            }
+        }
+        catch( Throwable ignore ) {
+            // ignore
+        }
+    }
+
+    private @Nullable Volume toVolume(@Nonnull String dcId, @Nonnull String volumeId, boolean withAttachment) throws CloudException, InternalException {
+        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+        Volume volume = newVolume(dcId, volumeId);
 
         String xml = method.get("disk", volumeId);
 
@@ -503,28 +706,8 @@ public class DiskSupport implements VolumeSupport {
                 volume.setDescription(attribute.getFirstChild().getNodeValue().trim());
             }
         }
-        try {
-            xml = method.get("disk", volumeId + "/attachedVms");
-
-            if( xml != null && !xml.equals("") ) {
-                doc = method.parseXML(xml);
-                docElementTagName = doc.getDocumentElement().getTagName();
-                nsString = "";
-                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                NodeList vms = doc.getElementsByTagName(nsString + "VmReference");
-
-                if( vms.getLength() > 0 ) {
-                    Node vm = vms.item(0);
-                    Node href = vm.getAttributes().getNamedItem("href");
-
-                    if( href != null ) {
-                        volume.setProviderVirtualMachineId(((vCloud)getProvider()).toID(href.getNodeValue().trim()));
-                    }
-                }
-            }
-        }
-        catch( Throwable ignore ) {
-            // ignore
+        if( withAttachment ) {
+            loadAttachment(method, volume);
         }
         if( volume.getName() == null ) {
             volume.setName(volume.getProviderVolumeId());
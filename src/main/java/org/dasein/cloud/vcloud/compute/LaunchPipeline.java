@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.vcloud.vCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the post-instantiation stages of launches on a bounded pool per vCloud endpoint, so a burst of launches
+ * queues rather than starting a thread per VM. The pool is sized by {@link vCloud#getLaunchConcurrency()} of the
+ * first launch against the endpoint, and its threads go away when idle. Launches are tracked by VM until they finish.
+ */
+final class LaunchPipeline {
+    static private final ConcurrentHashMap<String,ThreadPoolExecutor> executors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+    static private final ConcurrentHashMap<String,LaunchProgress>     active    = new ConcurrentHashMap<String, LaunchProgress>();
+
+    static private @Nonnull String getEndpoint(@Nonnull vCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx == null ? "" : ctx.getCloud().getEndpoint());
+    }
+
+    static private @Nonnull String getScope(@Nonnull vCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return getEndpoint(provider) + "|" + (ctx == null ? "" : ctx.getAccountNumber()) + "|";
+    }
+
+    static private @Nonnull ThreadPoolExecutor getExecutor(@Nonnull vCloud provider) {
+        final String endpoint = getEndpoint(provider);
+        ThreadPoolExecutor executor = executors.get(endpoint);
+
+        if( executor == null ) {
+            int size = Math.max(1, provider.getLaunchConcurrency());
+
+            executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, "Configure vCloud VM " + count.incrementAndGet() + " (" + endpoint + ")");
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+
+            ThreadPoolExecutor existing = executors.putIfAbsent(endpoint, executor);
+
+            if( existing != null ) {
+                executor.shutdown();
+                executor = existing;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the remaining stages of a launch.
+     * @param provider the cloud provider performing the launch
+     * @param progress the launch to run
+     */
+    static void submit(@Nonnull vCloud provider, @Nonnull LaunchProgress progress) {
+        final String key = getScope(provider) + progress.getProviderVirtualMachineId();
+
+        active.put(key, progress);
+        progress.addListener(new LaunchProgress.Listener() {
+            public void launchFinished(@Nonnull LaunchProgress p) {
+                active.remove(key, p);
+            }
+        });
+        getExecutor(provider).execute(progress.getTask());
+    }
+
+    /**
+     * @param provider the cloud provider whose account scopes the lookup
+     * @param vmId the launched VM
+     * @return the launch configuring the VM, or <code>null</code> if it is not being launched
+     */
+    static @Nullable LaunchProgress get(@Nonnull vCloud provider, @Nonnull String vmId) {
+        return active.get(getScope(provider) + vmId);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vcloud.vCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks the configuration of a freshly instantiated VM through to its power-on. {@link vAppSupport#launch(org.dasein.cloud.compute.VMLaunchOptions)}
+ * returns as soon as the vApp exists; the remaining stages run on the launch pipeline and are reported here. The
+ * future completes with the ID of the VM once it is fully configured and powered on, and fails with the error of the
+ * stage that failed. Cancelling stops the configuration before its next stage; the VM is left as it is at that point.
+ */
+public abstract class LaunchProgress implements Future<String> {
+    static private final Logger logger = vCloud.getLogger(LaunchProgress.class);
+
+    public enum Stage {
+        QUEUED, METADATA, VAPP_TASKS, RECONFIGURE, GUEST_CUSTOMIZATION, VM, CPU, MEMORY, NETWORK, DEPLOY, POWER_ON, COMPLETE
+    }
+
+    public interface Listener {
+        /**
+         * Called once the launch has completed, failed or been cancelled, on the thread that finished it.
+         * @param progress the finished launch
+         */
+        void launchFinished(@Nonnull LaunchProgress progress);
+    }
+
+    private final VirtualMachine          vm;
+    private final String                  vmId;
+    private final String                  vappId;
+    private final FutureTask<String>      task;
+    private final EnumMap<Stage,Long>     durations = new EnumMap<Stage, Long>(Stage.class);
+    private final ArrayList<Listener>     listeners = new ArrayList<Listener>();
+    private volatile Stage                stage     = Stage.QUEUED;
+    private long                          stageStarted;
+    private boolean                       finished;
+
+    LaunchProgress(@Nonnull VirtualMachine vm, @Nonnull String vappId) {
+        this.vm = vm;
+        this.vmId = vm.getProviderVirtualMachineId();
+        this.vappId = vappId;
+        this.stageStarted = System.currentTimeMillis();
+        this.task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                configure();
+                enter(Stage.COMPLETE);
+                return LaunchProgress.this.vmId;
+            }
+        }) {
+            @Override
+            protected void done() {
+                finish();
+            }
+        };
+    }
+
+    /**
+     * Runs the configuration stages, calling {@link #enter(Stage)} as each one begins.
+     * @throws Exception the stage in progress failed
+     */
+    protected abstract void configure() throws Exception;
+
+    /**
+     * Records the end of the current stage and the start of the next.
+     * @param next the stage now beginning
+     * @throws CancellationException the launch was cancelled, so the stage must not begin
+     */
+    protected final void enter(@Nonnull Stage next) {
+        if( task.isCancelled() ) {
+            throw new CancellationException("Launch of " + vmId + " was cancelled before " + next);
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized( durations ) {
+            durations.put(stage, now - stageStarted);
+            stage = next;
+            stageStarted = now;
+        }
+    }
+
+    private void finish() {
+        List<Listener> toNotify;
+
+        synchronized( durations ) {
+            if( stage != Stage.COMPLETE ) {
+                durations.put(stage, System.currentTimeMillis() - stageStarted);
+            }
+        }
+        synchronized( listeners ) {
+            finished = true;
+            toNotify = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Launch of " + vmId + " finished in " + stage + ": " + getDurations());
+        }
+        for( Listener listener : toNotify ) {
+            notify(listener);
+        }
+    }
+
+    private void notify(@Nonnull Listener listener) {
+        try {
+            listener.launchFinished(this);
+        }
+        catch( Throwable t ) {
+            logger.warn("Launch listener failed for " + vmId + ": " + t.getMessage());
+        }
+    }
+
+    /**
+     * Registers a listener for the end of the launch. If the launch has already finished, the listener is called
+     * immediately on the calling thread.
+     * @param listener the listener to call
+     */
+    public void addListener(@Nonnull Listener listener) {
+        synchronized( listeners ) {
+            if( !finished ) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    /**
+     * @return the time spent in each stage reached so far, in milliseconds, including the current one if it is done
+     */
+    public @Nonnull Map<Stage,Long> getDurations() {
+        synchronized( durations ) {
+            return Collections.unmodifiableMap(new EnumMap<Stage, Long>(durations));
+        }
+    }
+
+    /**
+     * @return the error that ended the launch, or <code>null</code> if it is still running, succeeded or was cancelled
+     */
+    public @Nullable Throwable getError() {
+        if( !task.isDone() || task.isCancelled() ) {
+            return null;
+        }
+        try {
+            task.get();
+            return null;
+        }
+        catch( ExecutionException e ) {
+            return e.getCause();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return the stage in progress, or the stage in which the launch failed or was cancelled
+     */
+    public @Nonnull Stage getStage() {
+        return stage;
+    }
+
+    public @Nonnull String getProviderVirtualMachineId() {
+        return vmId;
+    }
+
+    /**
+     * @return the VM as it was when instantiated, before any of the configuration stages ran
+     */
+    public @Nonnull VirtualMachine getVirtualMachine() {
+        return vm;
+    }
+
+    public @Nonnull String getProviderVAppId() {
+        return vappId;
+    }
+
+    @Nonnull Runnable getTask() {
+        return task;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return task.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    @Override
+    public String get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    @Override
+    public String get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return task.get(timeout, unit);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "Launch of " + vmId + " [" + stage + "]";
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.dc.DataCenter;
+import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.vcloud.vCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Resolves the image, networks and data center a launch depends on, remembering each answer for a short while
+ * ({@link vCloud#getLaunchLookupMillis()}). The answers are shared by every launch against the same cloud, account
+ * and region, and concurrent launches needing the same lookup wait for a single request rather than each making
+ * their own, so a burst of launches from one image costs one image lookup. Lookups that find nothing are not
+ * remembered. Products need no memoizing here as they come from the {@link ProductCatalog}.
+ */
+final class LaunchResolver {
+    static private final int MAX_ENTRIES = 1024;
+
+    static private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    static private class Entry {
+        final FutureTask<Object> task;
+        final long               expires;
+
+        Entry(@Nonnull FutureTask<Object> task, long expires) {
+            this.task = task;
+            this.expires = expires;
+        }
+    }
+
+    private final vCloud provider;
+    private final String scope;
+
+    LaunchResolver(@Nonnull vCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        this.provider = provider;
+        this.scope = (ctx == null ? "" : ctx.getCloud().getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|");
+    }
+
+    /**
+     * @return the first active and available data center of the region, or <code>null</code> if there is none
+     */
+    @Nullable String getDefaultDataCenterId() throws CloudException, InternalException {
+        return resolve("dc", "", new Callable<Object>() {
+            public Object call() throws Exception {
+                for( DataCenter dc : provider.getDataCenterServices().listDataCenters(provider.getContext().getRegionId()) ) {
+                    if( dc.isActive() && dc.isAvailable() ) {
+                        return dc.getProviderDataCenterId();
+                    }
+                }
+                return null;
+            }
+        }, String.class);
+    }
+
+    @Nullable MachineImage getImage(@Nonnull final String imageId) throws CloudException, InternalException {
+        return resolve("image", imageId, new Callable<Object>() {
+            public Object call() throws Exception {
+                return provider.getComputeServices().getImageSupport().getImage(imageId);
+            }
+        }, MachineImage.class);
+    }
+
+    @Nullable VLAN getVlan(@Nonnull final String vlanId) throws CloudException, InternalException {
+        return resolve("vlan", vlanId, new Callable<Object>() {
+            public Object call() throws Exception {
+                return provider.getNetworkServices().getVlanSupport().getVlan(vlanId);
+            }
+        }, VLAN.class);
+    }
+
+    /**
+     * @param name the name of the network
+     * @return the network with exactly that name, or failing that, the last one whose name matches ignoring case
+     */
+    @Nullable VLAN getVlanByName(@Nonnull final String name) throws CloudException, InternalException {
+        return resolve("vlanName", name, new Callable<Object>() {
+            public Object call() throws Exception {
+                VLAN match = null;
+
+                for( VLAN vlan : provider.getNetworkServices().getVlanSupport().listVlans() ) {
+                    if( name.equals(vlan.getName()) ) {
+                        return vlan;
+                    }
+                    if( name.equalsIgnoreCase(vlan.getName()) ) {
+                        match = vlan;
+                    }
+                }
+                return match;
+            }
+        }, VLAN.class);
+    }
+
+    private @Nullable <T> T resolve(@Nonnull String kind, @Nonnull String key, @Nonnull Callable<Object> lookup, @Nonnull Class<T> type) throws CloudException, InternalException {
+        String k = scope + kind + "|" + key;
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(k);
+
+        if( entry == null || entry.expires < now ) {
+            if( entries.size() >= MAX_ENTRIES ) {
+                purge(now);
+            }
+            Entry fresh = new Entry(new FutureTask<Object>(lookup), now + provider.getLaunchLookupMillis());
+
+            if( entry == null ) {
+                entry = entries.putIfAbsent(k, fresh);
+            }
+            else {
+                entry = (entries.replace(k, entry, fresh) ? null : entries.get(k));
+            }
+            if( entry == null ) {
+                entry = fresh;
+                entry.task.run();
+            }
+        }
+        try {
+            Object value = entry.task.get();
+
+            if( value == null ) {
+                entries.remove(k, entry);
+            }
+            return type.cast(value);
+        }
+        catch( InterruptedException e ) {
+            entries.remove(k, entry);
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            entries.remove(k, entry);
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    static private void purge(long now) {
+        for( Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if( it.next().getValue().expires < now ) {
+                it.remove();
+            }
+        }
+        if( entries.size() >= MAX_ENTRIES ) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The outcome of a bulk power operation for one of the VMs (or vApps) it was asked to act on.
+ */
+public class PowerOperationResult {
+    private final String    id;
+    private final String    vappId;
+    private final boolean   vappLevel;
+    private final Throwable error;
+
+    PowerOperationResult(@Nonnull String id, @Nullable String vappId, boolean vappLevel, @Nullable Throwable error) {
+        this.id = id;
+        this.vappId = vappId;
+        this.vappLevel = vappLevel;
+        this.error = error;
+    }
+
+    /**
+     * @return the ID as it was passed to the operation, which may be that of a VM or a vApp
+     */
+    public @Nonnull String getId() {
+        return id;
+    }
+
+    /**
+     * @return the vApp the operation was applied through, or <code>null</code> if it could not be determined
+     */
+    public @Nullable String getProviderVAppId() {
+        return vappId;
+    }
+
+    /**
+     * @return the error that prevented the operation, or <code>null</code> if it succeeded
+     */
+    public @Nullable Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the operation was applied to the whole vApp rather than to this VM alone
+     */
+    public boolean isVAppLevel() {
+        return vappLevel;
+    }
+
+    public boolean isSuccessful() {
+        return (error == null);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return id + (error == null ? " [OK]" : " [" + error.getMessage() + "]");
+    }
+}
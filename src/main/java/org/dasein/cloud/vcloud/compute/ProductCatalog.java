@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.vcloud.vCloud;
+import org.dasein.util.uom.storage.Gigabyte;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The standard products defined in a products resource for one provider and cloud. The resource is parsed once per
+ * resource/provider/cloud combination and the result never changes, so it is shared by every {@link vAppSupport}
+ * that uses it. Products are indexed by ID and by CPU count, RAM and architecture, which is how VMs are matched to
+ * their product while listing.
+ */
+final class ProductCatalog {
+    static private final Logger logger = vCloud.getLogger(ProductCatalog.class);
+
+    static private final ConcurrentHashMap<String,ProductCatalog> catalogs = new ConcurrentHashMap<String, ProductCatalog>();
+
+    static private class Entry {
+        final VirtualMachineProduct product;
+        final Set<Architecture>     architectures;
+        final Set<String>           excludedRegions;
+
+        Entry(@Nonnull VirtualMachineProduct product, @Nonnull Set<Architecture> architectures, @Nonnull Set<String> excludedRegions) {
+            this.product = product;
+            this.architectures = architectures;
+            this.excludedRegions = excludedRegions;
+        }
+
+        boolean isAvailable(@Nullable Architecture architecture, @Nullable String regionId) {
+            if( architecture != null && !architectures.contains(architecture) ) {
+                return false;
+            }
+            return (regionId == null || !excludedRegions.contains(regionId));
+        }
+    }
+
+    /**
+     * @param resource the classpath resource holding the product definitions
+     * @param providerName the provider whose product set should be used
+     * @param cloudName the cloud whose product set should be used
+     * @return the catalog for the given combination, parsing the resource only the first time
+     * @throws InternalException the resource could not be read or parsed
+     */
+    static @Nonnull ProductCatalog getInstance(@Nonnull String resource, @Nonnull String providerName, @Nonnull String cloudName) throws InternalException {
+        String key = resource + "|" + providerName.toLowerCase() + "|" + cloudName.toLowerCase();
+        ProductCatalog catalog = catalogs.get(key);
+
+        if( catalog == null ) {
+            catalog = load(resource, providerName, cloudName);
+            ProductCatalog existing = catalogs.putIfAbsent(key, catalog);
+
+            if( existing != null ) {
+                catalog = existing;
+            }
+        }
+        return catalog;
+    }
+
+    private final List<Entry>            entries;
+    private final Map<String,Entry>       byId;
+    private final Map<String,List<Entry>> byShape;
+
+    private ProductCatalog(@Nonnull List<Entry> entries) {
+        HashMap<String,Entry> ids = new HashMap<String, Entry>();
+        HashMap<String,List<Entry>> shapes = new HashMap<String, List<Entry>>();
+
+        for( Entry entry : entries ) {
+            VirtualMachineProduct prd = entry.product;
+
+            if( !ids.containsKey(prd.getProviderProductId()) ) {
+                ids.put(prd.getProviderProductId(), entry);
+            }
+            for( Architecture a : entry.architectures ) {
+                String shape = toShape(prd.getCpuCount(), prd.getRamSize().intValue(), a);
+                List<Entry> list = shapes.get(shape);
+
+                if( list == null ) {
+                    list = new ArrayList<Entry>(1);
+                    shapes.put(shape, list);
+                }
+                list.add(entry);
+            }
+        }
+        this.entries = Collections.unmodifiableList(entries);
+        this.byId = Collections.unmodifiableMap(ids);
+        this.byShape = Collections.unmodifiableMap(shapes);
+    }
+
+    static private @Nonnull String toShape(int cpuCount, int ramMb, @Nonnull Architecture architecture) {
+        return cpuCount + ":" + ramMb + ":" + architecture.name();
+    }
+
+    /**
+     * @param productId the product ID
+     * @param regionId the region in which the product is wanted, or <code>null</code> for any region
+     * @return the matching product, or <code>null</code> if there is no such product in that region
+     */
+    @Nullable VirtualMachineProduct getProduct(@Nonnull String productId, @Nullable String regionId) {
+        Entry entry = byId.get(productId);
+
+        if( entry == null || !entry.isAvailable(null, regionId) ) {
+            return null;
+        }
+        return entry.product;
+    }
+
+    /**
+     * @param cpuCount the number of CPUs
+     * @param ramMb the RAM in megabytes
+     * @param architecture the architecture
+     * @param regionId the region in which the product is wanted, or <code>null</code> for any region
+     * @return the first product in the resource with exactly that shape, or <code>null</code> if none matches
+     */
+    @Nullable VirtualMachineProduct findProduct(int cpuCount, int ramMb, @Nonnull Architecture architecture, @Nullable String regionId) {
+        List<Entry> list = byShape.get(toShape(cpuCount, ramMb, architecture));
+
+        if( list != null ) {
+            for( Entry entry : list ) {
+                if( entry.isAvailable(architecture, regionId) ) {
+                    return entry.product;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param architecture the architecture the products must support, or <code>null</code> for any
+     * @param regionId the region in which the products are wanted, or <code>null</code> for any region
+     * @return the matching products in the order they are defined
+     */
+    @Nonnull List<VirtualMachineProduct> list(@Nullable Architecture architecture, @Nullable String regionId) {
+        ArrayList<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
+
+        for( Entry entry : entries ) {
+            if( entry.isAvailable(architecture, regionId) ) {
+                list.add(entry.product);
+            }
+        }
+        return list;
+    }
+
+    static private @Nonnull ProductCatalog load(@Nonnull String resource, @Nonnull String providerName, @Nonnull String cloudName) throws InternalException {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+
+        try {
+            InputStream input = ProductCatalog.class.getResourceAsStream(resource);
+
+            if( input == null ) {
+                logger.warn("No standard products resource exists for " + resource);
+                return new ProductCatalog(list);
+            }
+            StringBuilder json = new StringBuilder();
+
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                String line;
+
+                while( (line = reader.readLine()) != null ) {
+                    json.append(line);
+                    json.append("\n");
+                }
+            }
+            finally {
+                input.close();
+            }
+            JSONArray arr = new JSONArray(json.toString());
+            JSONObject productSet = null;
+
+            for( int i=0; i<arr.length(); i++ ) {
+                JSONObject set = arr.getJSONObject(i);
+                String cloud, provider;
+
+                if( set.has("cloud") ) {
+                    cloud = set.getString("cloud");
+                }
+                else {
+                    continue;
+                }
+                if( set.has("provider") ) {
+                    provider = set.getString("provider");
+                }
+                else {
+                    continue;
+                }
+                if( !set.has("products") ) {
+                    continue;
+                }
+                if( productSet == null || (provider.equals("default") && cloud.equals("default")) ) {
+                    productSet = set;
+                }
+                if( provider.equalsIgnoreCase(providerName) && cloud.equalsIgnoreCase(cloudName) ) {
+                    productSet = set;
+                    break;
+                }
+            }
+            if( productSet == null ) {
+                logger.warn("No products were defined");
+                return new ProductCatalog(list);
+            }
+            JSONArray plist = productSet.getJSONArray("products");
+
+            for( int i=0; i<plist.length(); i++ ) {
+                JSONObject product = plist.getJSONObject(i);
+                VirtualMachineProduct prd = toProduct(product);
+
+                if( prd == null ) {
+                    continue;
+                }
+                Set<Architecture> architectures;
+
+                if( product.has("architectures") ) {
+                    JSONArray a = product.getJSONArray("architectures");
+
+                    architectures = EnumSet.noneOf(Architecture.class);
+                    for( int j=0; j<a.length(); j++ ) {
+                        try {
+                            architectures.add(Architecture.valueOf(a.getString(j)));
+                        }
+                        catch( IllegalArgumentException ignore ) {
+                            // an architecture Dasein does not know can never be asked for
+                        }
+                    }
+                }
+                else {
+                    architectures = EnumSet.allOf(Architecture.class);
+                }
+                Set<String> excludedRegions = new HashSet<String>();
+
+                if( product.has("excludesRegions") ) {
+                    JSONArray regions = product.getJSONArray("excludesRegions");
+
+                    for( int j=0; j<regions.length(); j++ ) {
+                        excludedRegions.add(regions.getString(j));
+                    }
+                }
+                list.add(new Entry(prd, Collections.unmodifiableSet(architectures), Collections.unmodifiableSet(excludedRegions)));
+            }
+            return new ProductCatalog(list);
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        catch( JSONException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private @Nullable VirtualMachineProduct toProduct(@Nonnull JSONObject json) throws JSONException {
+        VirtualMachineProduct prd = new VirtualMachineProduct();
+
+        if( json.has("id") ) {
+            prd.setProviderProductId(json.getString("id"));
+        }
+        else {
+            return null;
+        }
+        if( json.has("name") ) {
+            prd.setName(json.getString("name"));
+        }
+        else {
+            prd.setName(prd.getProviderProductId());
+        }
+        if( json.has("description") ) {
+            prd.setDescription(json.getString("description"));
+        }
+        else {
+            prd.setDescription(prd.getName());
+        }
+        if( json.has("cpuCount") ) {
+            prd.setCpuCount(json.getInt("cpuCount"));
+        }
+        else {
+            prd.setCpuCount(1);
+        }
+        if( json.has("rootVolumeSizeInGb") ) {
+            prd.setRootVolumeSize(new Storage<Gigabyte>(json.getInt("rootVolumeSizeInGb"), Storage.GIGABYTE));
+        }
+        else {
+            prd.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+        }
+        if( json.has("ramSizeInMb") ) {
+            prd.setRamSize(new Storage<Megabyte>(json.getInt("ramSizeInMb"), Storage.MEGABYTE));
+        }
+        else {
+            prd.setRamSize(new Storage<Megabyte>(512, Storage.MEGABYTE));
+        }
+        if( json.has("standardHourlyRates") ) {
+            JSONArray rates = json.getJSONArray("standardHourlyRates");
+
+            for( int i=0; i<rates.length(); i++ ) {
+                JSONObject rate = rates.getJSONObject(i);
+
+                if( rate.has("rate") ) {
+                    prd.setStandardHourlyRate((float)rate.getDouble("rate"));
+                }
+            }
+        }
+        return prd;
+    }
+}
@@ -43,6 +43,8 @@ import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.util.TagUtils;
+import org.dasein.cloud.vcloud.ProjectionOptions;
+import org.dasein.cloud.vcloud.ProjectionOptions.Facet;
 import org.dasein.cloud.vcloud.vCloud;
 import org.dasein.cloud.vcloud.vCloudMethod;
 import org.dasein.util.CalendarWrapper;
@@ -89,6 +91,12 @@ import java.util.concurrent.locks.ReentrantLock;
 public class TemplateSupport extends AbstractImageSupport<vCloud> {
     static private final Logger logger = vCloud.getLogger(TemplateSupport.class);
     static private final Lock lockCreationLock = new ReentrantLock();
+
+    /**
+     * What the plain listings populate when built from query records: neither the template documents nor the
+     * metadata behind the images are read. {@link #getImage(String)}, and so launch, loads both.
+     */
+    static private final ProjectionOptions LISTING = ProjectionOptions.getInstance().without(Facet.HARDWARE).without(Facet.METADATA);
     private TemplateSupportCapabilities capabilities;
 
     static public class Catalog {
@@ -362,6 +370,32 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
     public MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.getImage");
         try {
+            vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+
+            if( method.isQuerySupported() ) {
+                // the cached listing is built from query records, without the template document launches need
+                Iterable<vCloudMethod.QueryRecord> records = method.queryAll("catalogItem", "entity==" + method.toURL("vAppTemplate", providerImageId), null);
+
+                if( records != null ) {
+                    for( vCloudMethod.QueryRecord record : records ) {
+                        MachineImage image = toImage(method, record, null, ProjectionOptions.getInstance());
+
+                        if( image != null && image.getProviderMachineImageId().equals(providerImageId) ) {
+                            return image;
+                        }
+                    }
+                    return null;
+                }
+            }
+            Iterable<MachineImage> cached = getImageCache().get(getContext());
+
+            if( cached != null ) {
+                for( MachineImage image : cached ) {
+                    if( image.getProviderMachineImageId().equals(providerImageId) ) {
+                        return image;
+                    }
+                }
+            }
             for( MachineImage image : listImages(null) ) {
                 if( image.getProviderMachineImageId().equals(providerImageId) ) {
                     return image;
@@ -506,10 +540,39 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
 
     @Override
     public @Nonnull Iterable<MachineImage> listImages(final @Nullable ImageFilterOptions options) throws CloudException, InternalException {
-        Cache<MachineImage> cache = Cache.getInstance(getProvider(), "listImages", MachineImage.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(6, TimePeriod.MINUTE));
+        if( options != null && options.getTags() != null && !options.getTags().isEmpty() ) {
+            // tags live in metadata, which the listing built from query records does not read
+            vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+
+            if( method.isQuerySupported() ) {
+                APITrace.begin(getProvider(), "Image.listImages");
+                try {
+                    Iterable<MachineImage> images = null;
+
+                    if( !options.isMatchesAny() && vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+                        // a tag-scoped lookup only needs the templates carrying those tags, so let vCloud find them
+                        String metaDataFilter = vCloudMethod.toMetaDataFilter(options.getTags(), false);
+
+                        if( metaDataFilter != null ) {
+                            images = listImagesFromQuery(method, false, metaDataFilter, options.getTags(), LISTING);
+                        }
+                    }
+                    if( images == null ) {
+                        images = listImagesFromQuery(method, false, null, null, ProjectionOptions.getInstance(Facet.METADATA));
+                    }
+                    if( images != null ) {
+                        return filter(images, options);
+                    }
+                }
+                finally {
+                    APITrace.end();
+                }
+            }
+        }
+        Cache<MachineImage> cache = getImageCache();
         Iterable<MachineImage> imageList = cache.get(getContext());
         if (imageList != null) {
-            return imageList;
+            return filter(imageList, options);
         }
 
         // Limit the amount of listImage calls to one-at-a-time per REGION_ACCOUNT with a lock.
@@ -544,9 +607,18 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
             Iterable<MachineImage> imageList2 = cache.get(getContext());
             if (imageList2 != null) {
                 // A thread we were waiting on has refreshed the cache
-                return imageList2;
+                return filter(imageList2, options);
             }
+            vCloudMethod queryMethod = new vCloudMethod((vCloud)getProvider());
 
+            if( queryMethod.isQuerySupported() ) {
+                Iterable<MachineImage> images = listImagesFromQuery(queryMethod, false, null, null, LISTING);
+
+                if( images != null ) {
+                    cache.put(getContext(), images);
+                    return filter(images, options);
+                }
+            }
             ArrayList<MachineImage> images = new ArrayList<MachineImage>();
 
             for( Catalog catalog : listPrivateCatalogs() ) {
@@ -589,25 +661,10 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
                                             String catalogItemId = ((vCloud)getProvider()).toID(href.getNodeValue().trim());
                                             MachineImage image = loadTemplate(catalog.owner, catalogItemId, catalog.published);
                                             if( image != null ) {
-                                                if( options == null || options.matches(image) ) {
-                                                    image.setProviderOwnerId(catalog.owner);
-                                                    try {
-                                                    	String metaData = method.get("vAppTemplate", image.getProviderMachineImageId() + "/metadata");
-                                                    	if( metaData != null && !metaData.equals("") ) {
-                                                    		method.parseMetaData(image, metaData);
-                                                    	}
-                                                    }
-                                                    catch( Throwable warning ) {
-                                                    	if (logger.isDebugEnabled()) {
-                                                    		logger.warn("Failed to get and parse image metadata.", warning);
-                                                    	}
-                                                    	else {
-                                                    		logger.warn("Failed to get and parse image metadata.");
-                                                    	}
-                                                    }
-                                                    image.setTag("catalogItemId", catalogItemId);
-                                                    images.add(image);
-                                                }
+                                                image.setProviderOwnerId(catalog.owner);
+                                                loadMetaData(method, image);
+                                                image.setTag("catalogItemId", catalogItemId);
+                                                images.add(image);
                                             }
                                         }
                                     }
@@ -618,7 +675,7 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
                 }
             }
             cache.put(getContext(), images);
-            return images;
+            return filter(images, options);
         }
         finally {
             lock.unlock();
@@ -626,6 +683,232 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
         }
     }
 
+    /**
+     * Lists the private vApp templates matching the filter, populating only the requested facets.
+     * {@link Facet#HARDWARE} covers the template document behind each image (platform, architecture, child VMs and
+     * network configuration) and {@link Facet#METADATA} its tags. The filter is applied to the projected images, so
+     * the projection must include whatever facets the filter inspects. On vCloud 1.5 and later, the cached plain
+     * listing is built from query records and serves projections without either facet; projections including them
+     * read the documents behind each image and are not cached.
+     * @param options the filter the images must match, if any
+     * @param projection the facets to populate
+     * @return the matching images
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options, @Nonnull ProjectionOptions projection) throws CloudException, InternalException {
+        if( !projection.includes(Facet.HARDWARE) && !projection.includes(Facet.METADATA) ) {
+            return listImages(options);
+        }
+        APITrace.begin(getProvider(), "Image.listImages");
+        try {
+            vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+
+            if( method.isQuerySupported() ) {
+                Iterable<MachineImage> images = listImagesFromQuery(method, false, null, null, projection);
+
+                if( images != null ) {
+                    return filter(images, options);
+                }
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+        return listImages(options);
+    }
+
+    private @Nonnull Cache<MachineImage> getImageCache() {
+        return Cache.getInstance(getProvider(), "listImages", MachineImage.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(6, TimePeriod.MINUTE));
+    }
+
+    private @Nonnull Iterable<MachineImage> filter(@Nonnull Iterable<MachineImage> images, @Nullable ImageFilterOptions options) {
+        if( options == null ) {
+            return images;
+        }
+        ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+        for( MachineImage image : images ) {
+            if( options.matches(image) ) {
+                matches.add(image);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Lists the vApp templates in either the private or the published catalogs from <code>catalogItem</code> query
+     * records, joined with <code>vAppTemplate</code> records to leave out templates whose storage lease has expired.
+     * Only the facets in the projection cost a request per template: {@link Facet#HARDWARE} reads the template
+     * document and {@link Facet#METADATA} the metadata of private templates.
+     * @param method the method used to access vCloud
+     * @param published true for the published (public) catalogs, false for the private ones
+     * @param metaDataFilter a metadata filter the templates must match (5.1 and later), or <code>null</code> for all
+     * @param matchedTags the tags the metadata filter matches, which are set on the images, or <code>null</code>
+     * @param projection the facets to populate
+     * @return the images, or <code>null</code> if the query service refused the query
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nullable Iterable<MachineImage> listImagesFromQuery(@Nonnull vCloudMethod method, boolean published, @Nullable String metaDataFilter, @Nullable Map<String,String> matchedTags, @Nonnull ProjectionOptions projection) throws CloudException, InternalException {
+        HashMap<String,vCloudMethod.QueryRecord> templates = null;
+
+        if( metaDataFilter != null || !projection.includes(Facet.HARDWARE) ) {
+            Iterable<vCloudMethod.QueryRecord> records = method.queryAll("vAppTemplate", metaDataFilter, null);
+
+            if( records == null ) {
+                if( metaDataFilter != null ) {
+                    return null;
+                }
+            }
+            else {
+                templates = new HashMap<String, vCloudMethod.QueryRecord>();
+                for( vCloudMethod.QueryRecord template : records ) {
+                    if( template.getHref() != null ) {
+                        templates.put(((vCloud)getProvider()).toID(template.getHref()), template);
+                    }
+                }
+                if( metaDataFilter != null && templates.isEmpty() ) {
+                    return Collections.<MachineImage>emptyList();
+                }
+            }
+        }
+        Iterable<vCloudMethod.QueryRecord> records = method.queryAll("catalogItem", "entityType==vapptemplate;isPublished==" + published, null);
+
+        if( records == null ) {
+            return null;
+        }
+        HashMap<String,Catalog> catalogs = new HashMap<String, Catalog>();
+
+        for( Catalog catalog : (published ? listPublicCatalogs() : listPrivateCatalogs()) ) {
+            catalogs.put(catalog.catalogId, catalog);
+        }
+        ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+
+        for( vCloudMethod.QueryRecord record : records ) {
+            String entity = record.get("entity");
+            vCloudMethod.QueryRecord template = null;
+
+            if( templates != null && entity != null ) {
+                template = templates.get(((vCloud)getProvider()).toID(entity));
+            }
+            if( metaDataFilter != null && template == null ) {
+                continue;
+            }
+            if( template != null && "true".equalsIgnoreCase(template.get("isExpired")) ) {
+                // the template document would report an expired storage lease, which leaves the template unusable
+                continue;
+            }
+            MachineImage image = toImage(method, record, catalogs, projection);
+
+            if( image != null ) {
+                if( matchedTags != null ) {
+                    for( Map.Entry<String,String> tag : matchedTags.entrySet() ) {
+                        image.setTag(tag.getKey(), tag.getValue());
+                    }
+                }
+                images.add(image);
+            }
+        }
+        return images;
+    }
+
+    private void loadMetaData(@Nonnull vCloudMethod method, @Nonnull MachineImage image) {
+        try {
+            String metaData = method.get("vAppTemplate", image.getProviderMachineImageId() + "/metadata");
+            if( metaData != null && !metaData.equals("") ) {
+                method.parseMetaData(image, metaData);
+            }
+        }
+        catch( Throwable warning ) {
+            if (logger.isDebugEnabled()) {
+                logger.warn("Failed to get and parse image metadata.", warning);
+            }
+            else {
+                logger.warn("Failed to get and parse image metadata.");
+            }
+        }
+    }
+
+    /**
+     * Loads the template referenced by a catalog item record. Without {@link Facet#HARDWARE}, the template document
+     * is not read: the image is built from the record alone, with its platform guessed from the name, and without the
+     * network and child VM tags launches rely on. Listings leave out templates with expired storage leases from their
+     * <code>vAppTemplate</code> records instead.
+     * @param method the method used to access vCloud
+     * @param record the <code>CatalogItemRecord</code>
+     * @param catalogs the catalogs the item may belong to, or <code>null</code> to consider all visible catalogs
+     * @param projection the facets to populate
+     * @return the image, or <code>null</code> if the item is not a template in one of the catalogs
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nullable MachineImage toImage(@Nonnull vCloudMethod method, @Nonnull vCloudMethod.QueryRecord record, @Nullable Map<String,Catalog> catalogs, @Nonnull ProjectionOptions projection) throws CloudException, InternalException {
+        String href = record.getHref();
+        String entity = record.get("entity");
+        String catalogHref = record.get("catalog");
+
+        if( href == null || entity == null || catalogHref == null ) {
+            return null;
+        }
+        String catalogId = ((vCloud)getProvider()).toID(catalogHref);
+        Catalog catalog = null;
+
+        if( catalogs != null ) {
+            catalog = catalogs.get(catalogId);
+        }
+        else {
+            for( Catalog c : listPrivateCatalogs() ) {
+                if( c.catalogId.equals(catalogId) ) {
+                    catalog = c;
+                    break;
+                }
+            }
+            if( catalog == null ) {
+                for( Catalog c : listPublicCatalogs() ) {
+                    if( c.catalogId.equals(catalogId) ) {
+                        catalog = c;
+                        break;
+                    }
+                }
+            }
+        }
+        if( catalog == null ) {
+            return null;
+        }
+        String name = record.get("name");
+        String created = record.get("creationDate");
+
+        if( name != null && name.length() < 1 ) {
+            name = null;
+        }
+        String templateId = ((vCloud)getProvider()).toID(entity);
+        long createdAt = (created == null ? 0L : vCloud.parseTime(created));
+        MachineImage image;
+
+        if( projection.includes(Facet.HARDWARE) ) {
+            image = loadVapp(templateId, catalog.owner, catalog.published, name, null, createdAt);
+        }
+        else {
+            if( name == null ) {
+                name = templateId;
+            }
+            image = MachineImage.getMachineImageInstance(catalog.owner, getContext().getRegionId(), templateId, MachineImageState.ACTIVE, name, name, Architecture.I64, Platform.guess(name)).createdAt(createdAt);
+            if( catalog.published ) {
+                image.setTag("public", "true");
+            }
+        }
+        if( image == null ) {
+            return null;
+        }
+        image.setProviderOwnerId(catalog.owner);
+        if( !catalog.published && projection.includes(Facet.METADATA) ) {
+            loadMetaData(method, image);
+        }
+        image.setTag("catalogItemId", ((vCloud)getProvider()).toID(href));
+        return image;
+    }
+
     @Override
     public @Nonnull Iterable<MachineImageFormat> listSupportedFormats() throws CloudException, InternalException {
         return Collections.singletonList(MachineImageFormat.VMDK);
@@ -1036,6 +1319,22 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
     public @Nonnull Iterable<MachineImage> searchPublicImages(@Nonnull ImageFilterOptions options) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.searchPublicImages");
         try {
+            Cache<MachineImage> cache = Cache.getInstance(getProvider(), "publicImages", MachineImage.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(6, TimePeriod.MINUTE));
+            Iterable<MachineImage> cached = cache.get(getContext());
+
+            if( cached != null ) {
+                return filter(cached, options);
+            }
+            vCloudMethod queryMethod = new vCloudMethod((vCloud)getProvider());
+
+            if( queryMethod.isQuerySupported() ) {
+                Iterable<MachineImage> images = listImagesFromQuery(queryMethod, true, null, null, LISTING);
+
+                if( images != null ) {
+                    cache.put(getContext(), images);
+                    return filter(images, options);
+                }
+            }
             ArrayList<MachineImage> images = new ArrayList<MachineImage>();
 
             for( Catalog catalog : listPublicCatalogs() ) {
@@ -1079,11 +1378,9 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
                                             MachineImage image = loadTemplate(catalog.owner, catalogItemId, catalog.published);
 
                                             if( image != null ) {
-                                                if( options == null || options.matches(image) ) {
-                                                    image.setProviderOwnerId(catalog.owner);
-                                                    image.setTag("catalogItemId", catalogItemId);
-                                                    images.add(image);
-                                                }
+                                                image.setProviderOwnerId(catalog.owner);
+                                                image.setTag("catalogItemId", catalogItemId);
+                                                images.add(image);
                                             }
                                         }
                                     }
@@ -1094,7 +1391,8 @@ public class TemplateSupport extends AbstractImageSupport<vCloud> {
 
                 }
             }
-            return images;
+            cache.put(getContext(), images);
+            return filter(images, options);
         }
         finally {
             APITrace.end();
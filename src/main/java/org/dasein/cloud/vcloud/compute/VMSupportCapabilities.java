@@ -48,7 +48,7 @@ public class VMSupportCapabilities extends AbstractCapabilities<vCloud> implemen
 
     @Override
     public boolean canAlter(@Nonnull VmState fromState) throws CloudException, InternalException {
-        return false;
+        return (fromState.equals(VmState.RUNNING) || fromState.equals(VmState.STOPPED));
     }
 
     @Override
@@ -125,7 +125,8 @@ public class VMSupportCapabilities extends AbstractCapabilities<vCloud> implemen
 
     @Override
     public @Nullable VMScalingCapabilities getVerticalScalingCapabilities() throws CloudException, InternalException {
-        return null;
+        // products change in place, and volumes are attached separately
+        return VMScalingCapabilities.getInstance(false, true, Requirement.NONE, Requirement.NONE);
     }
 
 
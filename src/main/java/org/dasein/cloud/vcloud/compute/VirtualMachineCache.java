@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud.compute;
+
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vcloud.vCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short-lived cache of individual virtual machines shared by every {@link vAppSupport} of the same cloud,
+ * account and region. The Dasein {@link org.dasein.cloud.util.Cache} holds whole listings, whereas
+ * {@link vAppSupport#getVirtualMachine(String)} needs a freshness window per VM that operations on that VM (or its
+ * vApp) can cut short.
+ * <p>
+ * The cache keeps a detached copy of each VM and hands every caller a copy of its own, so changes one caller makes
+ * to its VM are never seen by another. Copies hold no reference to a provider: a VM whose metadata had not been
+ * loaded yet is cached with just the tags already known, and is handed out deferring its metadata to the
+ * {@link vAppSupport} of the caller, if any.
+ * </p>
+ * <p>
+ * A read that began before a change to its VM or vApp may finish after the change has invalidated the cache. Each
+ * invalidation therefore stamps the VM or vApp with a new generation, and a read only caches what it loaded if
+ * neither was invalidated after the generation it started from.
+ * </p>
+ */
+final class VirtualMachineCache {
+    static private final int MAX_ENTRIES = 4096;
+
+    static private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    static private final AtomicLong                     generations = new AtomicLong(0L);
+    static private final ConcurrentHashMap<String,Long> invalidated = new ConcurrentHashMap<String, Long>();
+    /**
+     * Reads that started before this generation are not cached, as the invalidations they raced with were forgotten.
+     */
+    static private volatile long                        oldestKnown = 0L;
+
+    static private class Entry {
+        final VirtualMachine vm;
+        final boolean        metaDataLoaded;
+        final String         vappId;
+        final long           expires;
+
+        Entry(@Nonnull VirtualMachine vm, boolean metaDataLoaded, @Nullable String vappId, long expires) {
+            this.vm = vm;
+            this.metaDataLoaded = metaDataLoaded;
+            this.vappId = vappId;
+            this.expires = expires;
+        }
+    }
+
+    static private @Nonnull String getScope(@Nonnull vCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return "";
+        }
+        return ctx.getCloud().getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|";
+    }
+
+    /**
+     * @param provider the cloud provider whose context scopes the cache
+     * @param vmId the virtual machine
+     * @param support the support through which metadata not yet loaded should be loaded when read, or
+     * <code>null</code> if the caller only needs the tags already known, such as the parent vApp
+     * @return a copy of the cached virtual machine, or <code>null</code> if it is not cached or no longer fresh
+     */
+    static @Nullable VirtualMachine get(@Nonnull vCloud provider, @Nonnull String vmId, @Nullable vAppSupport support) {
+        String key = getScope(provider) + vmId;
+        Entry entry = entries.get(key);
+
+        if( entry == null ) {
+            return null;
+        }
+        if( entry.expires < System.currentTimeMillis() ) {
+            entries.remove(key, entry);
+            return null;
+        }
+        VirtualMachine copy = ((entry.metaDataLoaded || support == null) ? new VirtualMachine() : new DeferredMetaDataVM(support));
+
+        copy(entry.vm, copy);
+        return copy;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(vCloud, VirtualMachine, long)} for a read starting now
+     */
+    static long getGeneration() {
+        return generations.get();
+    }
+
+    /**
+     * Caches a virtual machine that was read, unless it or its vApp changed while it was being read.
+     * @param provider the cloud provider whose context scopes the cache
+     * @param vm the virtual machine as read
+     * @param generation the generation from {@link #getGeneration()} before the read began
+     */
+    static void put(@Nonnull vCloud provider, @Nonnull VirtualMachine vm, long generation) {
+        String vmId = vm.getProviderVirtualMachineId();
+
+        if( vmId == null ) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        if( entries.size() >= MAX_ENTRIES ) {
+            purge(now);
+        }
+        String scope = getScope(provider);
+        boolean metaDataLoaded = (!(vm instanceof DeferredMetaDataVM) || ((DeferredMetaDataVM)vm).isMetaDataLoaded());
+        VirtualMachine snapshot = new VirtualMachine();
+
+        copy(vm, snapshot);
+        String vappId = (String)snapshot.getTag(vAppSupport.PARENT_VAPP_ID);
+
+        if( isStale(scope, vmId, vappId, generation) ) {
+            return;
+        }
+        Entry entry = new Entry(snapshot, metaDataLoaded, vappId, now + provider.getVmCacheMillis());
+
+        entries.put(scope + vmId, entry);
+        // an invalidation landing between the check and the put may have missed the entry
+        if( isStale(scope, vmId, vappId, generation) ) {
+            entries.remove(scope + vmId, entry);
+        }
+    }
+
+    static private boolean isStale(@Nonnull String scope, @Nonnull String vmId, @Nullable String vappId, long generation) {
+        if( generation < oldestKnown ) {
+            return true;
+        }
+        Long changed = invalidated.get(scope + vmId);
+
+        if( changed != null && changed > generation ) {
+            return true;
+        }
+        changed = (vappId == null ? null : invalidated.get(scope + vappId));
+        return (changed != null && changed > generation);
+    }
+
+    /**
+     * Copies the state vCloud VMs carry from one virtual machine to another. Metadata a {@link DeferredMetaDataVM}
+     * has not loaded yet is left behind rather than loaded.
+     * @param from the virtual machine to copy
+     * @param to a freshly constructed virtual machine
+     */
+    static private void copy(@Nonnull VirtualMachine from, @Nonnull VirtualMachine to) {
+        long created;
+        String imageId;
+        Map<String,String> tags;
+
+        if( from instanceof DeferredMetaDataVM && !((DeferredMetaDataVM)from).isMetaDataLoaded() ) {
+            DeferredMetaDataVM deferred = (DeferredMetaDataVM)from;
+
+            created = deferred.getKnownCreationTimestamp();
+            imageId = deferred.getKnownProviderMachineImageId();
+            tags = deferred.getKnownTags();
+        }
+        else {
+            created = from.getCreationTimestamp();
+            imageId = from.getProviderMachineImageId();
+            tags = from.getTags();
+        }
+        to.setProviderVirtualMachineId(from.getProviderVirtualMachineId());
+        to.setName(from.getName());
+        to.setDescription(from.getDescription());
+        to.setProviderOwnerId(from.getProviderOwnerId());
+        to.setProviderRegionId(from.getProviderRegionId());
+        to.setProviderDataCenterId(from.getProviderDataCenterId());
+        to.setProviderVlanId(from.getProviderVlanId());
+        to.setProviderMachineImageId(imageId);
+        to.setProductId(from.getProductId());
+        to.setCreationTimestamp(created);
+        to.setLastBootTimestamp(from.getLastBootTimestamp());
+        to.setLastPauseTimestamp(from.getLastPauseTimestamp());
+        to.setClonable(from.isClonable());
+        to.setImagable(from.isImagable());
+        to.setPausable(from.isPausable());
+        to.setPersistent(from.isPersistent());
+        to.setRebootable(from.isRebootable());
+        to.setRootUser(from.getRootUser());
+        to.setRootPassword(from.getRootPassword());
+        if( from.getArchitecture() != null ) {
+            to.setArchitecture(from.getArchitecture());
+        }
+        if( from.getCurrentState() != null ) {
+            to.setCurrentState(from.getCurrentState());
+        }
+        if( from.getPlatform() != null ) {
+            to.setPlatform(from.getPlatform());
+        }
+        if( from.getPrivateAddresses() != null ) {
+            to.setPrivateAddresses(from.getPrivateAddresses().clone());
+        }
+        if( from.getPublicAddresses() != null ) {
+            to.setPublicAddresses(from.getPublicAddresses().clone());
+        }
+        for( Map.Entry<String,String> tag : tags.entrySet() ) {
+            to.setTag(tag.getKey(), tag.getValue());
+        }
+    }
+
+    /**
+     * Drops the cached state of a virtual machine, or of every virtual machine in a vApp if the ID is that of a
+     * vApp. Operations accept either, so both are checked.
+     * @param provider the cloud provider whose context scopes the cache
+     * @param id the ID of the virtual machine or vApp that changed
+     */
+    static void invalidate(@Nonnull vCloud provider, @Nonnull String id) {
+        String scope = getScope(provider);
+        long generation = generations.incrementAndGet();
+
+        if( invalidated.size() >= MAX_ENTRIES ) {
+            oldestKnown = generation;
+            invalidated.clear();
+        }
+        invalidated.put(scope + id, generation);
+        entries.remove(scope + id);
+        for( Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,Entry> e = it.next();
+
+            if( id.equals(e.getValue().vappId) && e.getKey().startsWith(scope) ) {
+                it.remove();
+            }
+        }
+    }
+
+    static private void purge(long now) {
+        for( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if( it.next().expires < now ) {
+                it.remove();
+            }
+        }
+        if( entries.size() >= MAX_ENTRIES ) {
+            entries.clear();
+        }
+    }
+}
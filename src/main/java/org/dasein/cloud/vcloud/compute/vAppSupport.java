@@ -21,12 +21,15 @@ package org.dasein.cloud.vcloud.compute;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.compute.AbstractVMSupport;
 import org.dasein.cloud.compute.Architecture;
 import org.dasein.cloud.compute.MachineImage;
 import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VMFilterOptions;
 import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VMScalingOptions;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.compute.VirtualMachineCapabilities;
 import org.dasein.cloud.compute.VirtualMachineProduct;
@@ -40,36 +43,45 @@ import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.util.TagUtils;
+import org.dasein.cloud.vcloud.ParallelTasks;
+import org.dasein.cloud.vcloud.ProjectionOptions;
+import org.dasein.cloud.vcloud.ProjectionOptions.Facet;
 import org.dasein.cloud.vcloud.vCloud;
 import org.dasein.cloud.vcloud.vCloudException;
 import org.dasein.cloud.vcloud.vCloudMethod;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorPopulator;
 import org.dasein.util.PopulatorThread;
-import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
 import org.dasein.util.uom.storage.Storage;
-import org.dasein.util.uom.time.Day;
-import org.dasein.util.uom.time.TimePeriod;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements services for interacting with virtual machines in a vCloud environment. A Dasein Cloud virtual machine
@@ -85,12 +97,187 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     static private final Logger logger = vCloud.getLogger(vAppSupport.class);
 
     static public final String PARENT_VAPP_ID = "parentVAppId";
+
+    static private final String RESOURCE_CPU    = "3";
+    static private final String RESOURCE_MEMORY = "4";
+    static private final String RESOURCE_DISK   = "17";
+
     private volatile transient VMSupportCapabilities capabilities;
 
     vAppSupport(@Nonnull vCloud provider) {
         super(provider);
     }
 
+    @Override
+    public VirtualMachine alterVirtualMachine(@Nonnull String vmId, @Nonnull VMScalingOptions options) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.alterVirtualMachine");
+        try {
+            String productId = options.getProviderProductId();
+            VirtualMachineProduct product = (productId == null ? null : getProduct(productId));
+
+            if( product == null ) {
+                throw new CloudException("No such product: " + productId);
+            }
+            vCloudMethod method = new vCloudMethod(getProvider());
+            String xml = method.get("vApp", vmId);
+
+            if( xml == null || xml.equals("") ) {
+                throw new CloudException("No such virtual machine: " + vmId);
+            }
+            Document doc = method.parseXML(xml);
+            Element vm = doc.getDocumentElement();
+            String vmUrl = vm.getAttribute("href").trim();
+            Node hardware = null, vmCapabilities = null;
+            NodeList children = vm.getChildNodes();
+
+            for( int i=0; i<children.getLength(); i++ ) {
+                Node child = children.item(i);
+
+                if( child.getNodeName().endsWith("VirtualHardwareSection") ) {
+                    hardware = child;
+                }
+                else if( child.getNodeName().endsWith("VmCapabilities") ) {
+                    vmCapabilities = child;
+                }
+            }
+            Node cpuItem = (hardware == null ? null : getHardwareItem(hardware, RESOURCE_CPU));
+            Node memoryItem = (hardware == null ? null : getHardwareItem(hardware, RESOURCE_MEMORY));
+            Node diskItem = (hardware == null ? null : getHardwareItem(hardware, RESOURCE_DISK));
+
+            if( cpuItem == null || memoryItem == null || vmUrl.equals("") ) {
+                throw new CloudException("Unable to identify the virtual hardware of " + vmId);
+            }
+            int cpu = toInt(getRasdValue(cpuItem, "VirtualQuantity"));
+            int memory = toInt(getRasdValue(memoryItem, "VirtualQuantity"));
+            boolean cpuChange = (cpu != product.getCpuCount());
+            boolean memoryChange = (memory != product.getRamSize().intValue());
+            long diskMb = (product.getRootVolumeSize() == null ? 0L : product.getRootVolumeSize().intValue() * 1024L);
+            Node capacity = (diskItem == null ? null : getDiskCapacity(diskItem));
+            // disks only ever grow
+            boolean diskChange = (capacity != null && diskMb > toInt(capacity.getNodeValue()));
+
+            if( cpuChange || memoryChange || diskChange ) {
+                // increases the guest can take while running avoid a power cycle; anything else needs the VM off
+                boolean hot = (!cpuChange || (product.getCpuCount() > cpu && isEnabled(vmCapabilities, "CpuHotAddEnabled")))
+                        && (!memoryChange || (product.getRamSize().intValue() > memory && isEnabled(vmCapabilities, "MemoryHotAddEnabled")));
+                boolean cycle = (!hot && "4".equals(vm.getAttribute("status").trim()));
+
+                if( cycle ) {
+                    undeploy(vmId);
+                }
+                try {
+                    if( cpuChange ) {
+                        setCpu(cpuItem, product);
+                    }
+                    if( memoryChange ) {
+                        setMemory(memoryItem, product);
+                    }
+                    if( diskChange ) {
+                        capacity.setNodeValue(String.valueOf(diskMb));
+                    }
+                    if( vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+                        method.waitFor(method.post("reconfigureVm", vmUrl + "/action/reconfigureVm", method.getMediaTypeForVM(), method.toXML(vm)));
+                    }
+                    else {
+                        if( cpuChange ) {
+                            method.waitFor(method.put("virtualHardwareSection/cpu", vmUrl + "/virtualHardwareSection/cpu", method.getMediaTypeForRasdItem(), toCpuItemXml(vmUrl, product)));
+                        }
+                        if( memoryChange ) {
+                            method.waitFor(method.put("virtualHardwareSection/memory", vmUrl + "/virtualHardwareSection/memory", method.getMediaTypeForRasdItem(), toMemoryItemXml(vmUrl, product)));
+                        }
+                        if( diskChange ) {
+                            method.waitFor(method.put("virtualHardwareSection/disks", vmUrl + "/virtualHardwareSection/disks", method.getMediaTypeForRasdItemsList(), toDisksXml(method, doc, hardware)));
+                        }
+                    }
+                }
+                finally {
+                    if( cycle ) {
+                        startVapp(vmId, true);
+                    }
+                }
+                VirtualMachineCache.invalidate(getProvider(), vmId);
+            }
+            return getVirtualMachine(vmId);
+        }
+        finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
+            APITrace.end();
+        }
+    }
+
+    private int toInt(@Nullable String value) {
+        if( value != null ) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch( NumberFormatException ignore ) {
+                // treated as unknown
+            }
+        }
+        return 0;
+    }
+
+    private boolean isEnabled(@Nullable Node section, @Nonnull String flag) {
+        if( section == null ) {
+            return false;
+        }
+        NodeList flags = section.getChildNodes();
+
+        for( int i=0; i<flags.getLength(); i++ ) {
+            Node f = flags.item(i);
+
+            if( f.getNodeName().endsWith(flag) ) {
+                return f.getTextContent().trim().equalsIgnoreCase("true");
+            }
+        }
+        return false;
+    }
+
+    private @Nullable Node getDiskCapacity(@Nonnull Node diskItem) {
+        NodeList values = diskItem.getChildNodes();
+
+        for( int i=0; i<values.getLength(); i++ ) {
+            Node value = values.item(i);
+
+            if( value.getNodeName().endsWith("HostResource") && value.hasAttributes() ) {
+                NamedNodeMap attributes = value.getAttributes();
+
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node attribute = attributes.item(j);
+
+                    if( attribute.getNodeName().endsWith("capacity") ) {
+                        return attribute;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Before 5.1, disks are changed by replacing the whole disk list of the VM, controllers included.
+     */
+    private @Nonnull String toDisksXml(@Nonnull vCloudMethod method, @Nonnull Document doc, @Nonnull Node hardwareSection) throws InternalException {
+        Element list = doc.createElement("RasdItemsList");
+        NodeList items = hardwareSection.getChildNodes();
+
+        copyNamespaces(doc, list);
+        list.setAttribute("xmlns", "http://www.vmware.com/vcloud/v1.5");
+        list.setAttribute("type", method.getMediaTypeForRasdItemsList());
+        for( int i=0; i<items.getLength(); i++ ) {
+            Node item = items.item(i);
+
+            if( item.getNodeName().endsWith("Item") ) {
+                String type = getRasdValue(item, "ResourceType");
+
+                if( "5".equals(type) || "6".equals(type) || "20".equals(type) || RESOURCE_DISK.equals(type) ) {
+                    list.appendChild(item.cloneNode(true));
+                }
+            }
+        }
+        return method.toXML(list);
+    }
+
     public void deploy(@Nonnull String vmId) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VM.deploy");
         try {
@@ -134,6 +321,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             }
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -147,10 +335,16 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
         return capabilities;
     }
 
+    private @Nonnull ProductCatalog getProductCatalog() throws InternalException {
+        vCloud provider = getProvider();
+
+        return ProductCatalog.getInstance(provider.getVMProductsResource(), provider.getProviderName(), provider.getCloudName());
+    }
+
     public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.getProduct");
         try {
-            VirtualMachineProduct product = super.getProduct(productId);
+            VirtualMachineProduct product = getProductCatalog().getProduct(productId, getContext().getRegionId());
 
             if( product == null && productId.startsWith("custom") ) {
                 String[] parts = productId.split(":");
@@ -175,6 +369,46 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
         }
     }
 
+    /**
+     * Finds the VDC of a virtual machine without reading its parent vApp where possible: an org with a single VDC
+     * needs no request at all, and on 1.5 and later the <code>vm</code> query record names the VDC.
+     * @param method the method used to access vCloud
+     * @param vmId the virtual machine
+     * @param parentVAppId the vApp containing the virtual machine
+     * @return the VDC ID, or <code>null</code> if it could not be determined
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nullable String getVDC(@Nonnull vCloudMethod method, @Nonnull String vmId, @Nonnull String parentVAppId) throws CloudException, InternalException {
+        Collection<DataCenter> dcs = method.listDataCenters();
+
+        if( dcs.size() == 1 ) {
+            return dcs.iterator().next().getProviderDataCenterId();
+        }
+        if( method.isQuerySupported() ) {
+            String uuid = vmId.substring(vmId.lastIndexOf('/') + 1);
+
+            if( uuid.startsWith("vm-") ) {
+                uuid = uuid.substring(3);
+            }
+            try {
+                List<vCloudMethod.QueryRecord> records = method.queryAll("vm", "id==" + uuid, "vdc");
+
+                if( records != null ) {
+                    for( vCloudMethod.QueryRecord record : records ) {
+                        if( record.get("vdc") != null ) {
+                            return (getProvider()).toID(record.get("vdc"));
+                        }
+                    }
+                }
+            }
+            catch( CloudException e ) {
+                logger.warn("Unable to query for VM " + vmId + ", reading its vApp instead: " + e.getMessage());
+            }
+        }
+        return getVDC(parentVAppId);
+    }
+
     private @Nullable String getVDC(@Nonnull String vappId) throws CloudException, InternalException {
         vCloudMethod method = new vCloudMethod(getProvider());
         String xml = method.get("vApp", vappId);
@@ -220,6 +454,14 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
 
     @Override
     public VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException, CloudException {
+        VirtualMachine cached = VirtualMachineCache.get(getProvider(), vmId, this);
+
+        if( cached != null ) {
+            return cached;
+        }
+        // taken before the read, so that a change racing with the read keeps what it read out of the cache
+        long generation = VirtualMachineCache.getGeneration();
+
         APITrace.begin(getProvider(), "VM.getVirtualMachine");
         try {
             vCloudMethod method = new vCloudMethod((vCloud)getProvider());
@@ -255,14 +497,19 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
 
                                 if( href != null ) {
                                     parentVapp = ((vCloud)getProvider()).toID(href.getNodeValue().trim());
-                                    vdc = getVDC(parentVapp);
+                                    vdc = getVDC(method, vmId, parentVapp);
                                 }
                             }
                         }
                     }
                 }
                 if( vdc != null ) {
-                    return toVirtualMachine(vdc, parentVapp, vmNode, ((vCloud)getProvider()).getNetworkServices().getVlanSupport().listVlans());
+                    VirtualMachine vm = toVirtualMachine(vdc, parentVapp, vmNode, ProjectionOptions.getInstance(), new NetworkIndex(), true);
+
+                    if( vm != null ) {
+                        VirtualMachineCache.put(getProvider(), vm, generation);
+                    }
+                    return vm;
                 }
             }
             return null;
@@ -283,8 +530,184 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
         }
     }
 
+    /**
+     * The dependencies of a launch that are the same for every VM launched with the same options.
+     */
+    static private class LaunchTargets {
+        final String                vdcId;
+        final VirtualMachineProduct product;
+        final MachineImage          image;
+        final String                vlanId;
+        final VLAN                  vlan;
+
+        LaunchTargets(@Nonnull String vdcId, @Nullable VirtualMachineProduct product, @Nonnull MachineImage image, @Nonnull String vlanId, @Nonnull VLAN vlan) {
+            this.vdcId = vdcId;
+            this.product = product;
+            this.image = image;
+            this.vlanId = vlanId;
+            this.vlan = vlan;
+        }
+    }
+
+    private @Nonnull LaunchTargets resolveLaunchTargets(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        LaunchResolver resolver = new LaunchResolver(getProvider());
+        String vdcId = withLaunchOptions.getDataCenterId();
+
+        if( vdcId == null ) {
+            vdcId = resolver.getDefaultDataCenterId();
+        }
+        if( vdcId == null ) {
+            throw new CloudException("Unable to identify a target data center for deploying VM");
+        }
+        VirtualMachineProduct product = getProduct(withLaunchOptions.getStandardProductId());
+        MachineImage img = resolver.getImage(withLaunchOptions.getMachineImageId());
+
+        if( img == null ) {
+            throw new CloudException("No such image: " + withLaunchOptions.getMachineImageId());
+        }
+        String vlanId = withLaunchOptions.getVlanId();
+
+        // If vlanId is not specified, explicitly use default in machine image. If left out,
+        // default is not recognized in vCloud 1.5, error is: VCD entity network "X"
+        // specified for VM "Y" does not exist (even though it does exist)
+        if (vlanId == null || vlanId.trim().isEmpty()) {
+            String defaultVlanName = (String)img.getTag("defaultVlanName");
+            String defaultVlanNameDHCP = (String)img.getTag("defaultVlanNameDHCP");
+            if (defaultVlanName != null && !defaultVlanName.trim().isEmpty()) {
+                VLAN defaultVlan = resolver.getVlanByName(defaultVlanName);
+
+                if (defaultVlan != null) {
+                    vlanId = defaultVlan.getProviderVlanId();
+                }
+                if (vlanId == null) {
+                    throw new CloudException("Could not locate default vlan '" + defaultVlanName + "'");
+                }
+            } else if (defaultVlanNameDHCP != null && !defaultVlanNameDHCP.trim().isEmpty()) {
+                throw new CloudException("No vlan selected and the default is DHCP-based which is not supported");
+            } else {
+                throw new CloudException("No vlan specified and no default.");
+            }
+        }
+
+        VLAN vlan = resolver.getVlan(vlanId);
+        if( vlan == null ) {
+            throw new CloudException("Failed to find vlan " + vlanId);
+        }
+        return new LaunchTargets(vdcId, product, img, vlanId, vlan);
+    }
+
+    @Override
+    public @Nonnull Iterable<String> launchMany(@Nonnull VMLaunchOptions withLaunchOptions, @Nonnegative int count) throws CloudException, InternalException {
+        ArrayList<String> ids = new ArrayList<String>();
+        Throwable error = null;
+
+        for( Future<LaunchProgress> f : launchManyAsync(withLaunchOptions, count) ) {
+            try {
+                ids.add(f.get().getProviderVirtualMachineId());
+            }
+            catch( ExecutionException e ) {
+                logger.error("Unable to launch one of " + count + " VMs for " + withLaunchOptions.getHostName() + ": " + e.getCause().getMessage());
+                if( error == null ) {
+                    error = e.getCause();
+                }
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+        }
+        if( ids.isEmpty() && error != null ) {
+            if( error instanceof CloudException ) {
+                throw (CloudException)error;
+            }
+            if( error instanceof InternalException ) {
+                throw (InternalException)error;
+            }
+            throw new InternalException(error);
+        }
+        return ids;
+    }
+
+    /**
+     * Launches several VMs from the same options. The image, network, product and data center are resolved once
+     * for all of them, and the instantiations run in parallel, bounded by {@link vCloud#getLaunchConcurrency()}.
+     * Each VM gets its own vApp, and when more than one is launched, the host and friendly names get the suffix
+     * <code>-1</code>, <code>-2</code> and so on.
+     * @param withLaunchOptions the options for the new VMs
+     * @param count the number of VMs to launch
+     * @return one future per VM that completes once its vApp exists, with the progress of its remaining launch stages
+     * @throws CloudException an error occurred in vCloud resolving the dependencies of the launch
+     * @throws InternalException an error occurred within Dasein Cloud resolving the dependencies of the launch
+     */
+    public @Nonnull List<Future<LaunchProgress>> launchManyAsync(@Nonnull VMLaunchOptions withLaunchOptions, @Nonnegative int count) throws CloudException, InternalException {
+        final LaunchTargets targets = resolveLaunchTargets(withLaunchOptions);
+        final String hostName = withLaunchOptions.getHostName();
+        ArrayList<Future<LaunchProgress>> launches = new ArrayList<Future<LaunchProgress>>();
+
+        if( count < 1 ) {
+            return launches;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, Math.max(1, getProvider().getLaunchConcurrency())), new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger(0);
+
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Launch " + hostName + " " + threads.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            for( int i=1; i<=count; i++ ) {
+                final VMLaunchOptions options;
+
+                if( count == 1 ) {
+                    options = withLaunchOptions;
+                }
+                else {
+                    options = withLaunchOptions.copy(hostName + "-" + i, withLaunchOptions.getFriendlyName() + "-" + i);
+                }
+                launches.add(executor.submit(new Callable<LaunchProgress>() {
+                    public LaunchProgress call() throws Exception {
+                        return launchAsync(options, targets);
+                    }
+                }));
+            }
+        }
+        finally {
+            // queued instantiations still run; the threads go away once they are done
+            executor.shutdown();
+        }
+        return launches;
+    }
+
+    /**
+     * @param vmId the launched VM
+     * @return the progress of the VM's launch, or <code>null</code> if it is not (or no longer) being launched
+     */
+    public @Nullable LaunchProgress getLaunchProgress(@Nonnull String vmId) {
+        return LaunchPipeline.get(getProvider(), vmId);
+    }
+
     @Override
-    public @Nonnull VirtualMachine launch(@Nonnull final VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+    public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        return launchAsync(withLaunchOptions).getVirtualMachine();
+    }
+
+    /**
+     * Instantiates a VM and queues its configuration and power-on on the launch pipeline. This returns as soon as the
+     * vApp exists, like {@link #launch(VMLaunchOptions)}, but with a handle on the remaining stages.
+     * @param withLaunchOptions the options for the new VM
+     * @return the progress of the launch, which completes once the VM is fully configured and powered on
+     * @throws CloudException an error occurred in vCloud instantiating the VM
+     * @throws InternalException an error occurred within Dasein Cloud preparing the launch
+     */
+    public @Nonnull LaunchProgress launchAsync(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        return launchAsync(withLaunchOptions, resolveLaunchTargets(withLaunchOptions));
+    }
+
+    private @Nonnull LaunchProgress launchAsync(@Nonnull final VMLaunchOptions withLaunchOptions, @Nonnull LaunchTargets targets) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "launchVM");
         final String pw = withLaunchOptions.getBootstrapPassword();
         try {
@@ -294,57 +717,18 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
                throw new CloudException("The maximum name length is 27: '" + basename + "' is " + basename.length());
             }
 
-            String vdcId = withLaunchOptions.getDataCenterId();
-
-            if( vdcId == null ) {
-                for( DataCenter dc : getProvider().getDataCenterServices().listDataCenters(getContext().getRegionId()) ) {
-                    if( dc.isActive() && dc.isAvailable() ) {
-                        vdcId = dc.getProviderDataCenterId();
-                        break;
-                    }
-                }
-            }
-            if( vdcId == null ) {
-                throw new CloudException("Unable to identify a target data center for deploying VM");
-            }
-            final VirtualMachineProduct product = getProduct(withLaunchOptions.getStandardProductId());
+            String vdcId = targets.vdcId;
+            final VirtualMachineProduct product = targets.product;
             final vCloudMethod method = new vCloudMethod((vCloud)getProvider());
-            final MachineImage img = ((vCloud)getProvider()).getComputeServices().getImageSupport().getImage(withLaunchOptions.getMachineImageId());
+            final MachineImage img = targets.image;
 
-            if( img == null ) {
-                throw new CloudException("No such image: " + withLaunchOptions.getMachineImageId());
-            }
             StringBuilder xml = new StringBuilder();
 
             xml.append("<InstantiateVAppTemplateParams xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" name=\"").append(withLaunchOptions.getFriendlyName()).append("\" xmlns=\"http://www.vmware.com/vcloud/v1.5\" deploy=\"false\" powerOn=\"false\">");
             xml.append("<Description>").append(img.getProviderMachineImageId()).append("</Description>");
 
-            String vlanId = withLaunchOptions.getVlanId();
-
-            // If vlanId is not specified, explicitly use default in machine image. If left out,
-            // default is not recognized in vCloud 1.5, error is: VCD entity network "X"
-            // specified for VM "Y" does not exist (even though it does exist)
-            if (vlanId == null || vlanId.trim().isEmpty()) {
-                String defaultVlanName = (String)img.getTag("defaultVlanName");
-                String defaultVlanNameDHCP = (String)img.getTag("defaultVlanNameDHCP");
-                if (defaultVlanName != null && !defaultVlanName.trim().isEmpty()) {
-                    Iterable<VLAN> vlans = ((vCloud)getProvider()).getNetworkServices().getVlanSupport().listVlans();
-                    for (VLAN vlan : vlans) {
-                        if (defaultVlanName.equalsIgnoreCase(vlan.getName())) {
-                            vlanId = vlan.getProviderVlanId();
-                        }
-                    }
-                    if (vlanId == null) {
-                        throw new CloudException("Could not locate default vlan '" + defaultVlanName + "'");
-                    }
-                } else if (defaultVlanNameDHCP != null && !defaultVlanNameDHCP.trim().isEmpty()) {
-                    throw new CloudException("No vlan selected and the default is DHCP-based which is not supported");
-                } else {
-                    throw new CloudException("No vlan specified and no default.");
-                }
-            }
-
-            final VLAN vlan = ((vCloud)getProvider()).getNetworkServices().getVlanSupport().getVlan(vlanId);
+            String vlanId = targets.vlanId;
+            final VLAN vlan = targets.vlan;
             if( vlan != null ) {
                 //check image tags
                 String parentName = null, parentId = null, parentHref = null;
@@ -373,14 +757,10 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
                 if (parentName == null || !vlan.getName().equals(parentName)) {
                     // if we don't have the parent id we need to try and find it
                     if (parentId == null && parentName != null) {
-                        Iterable<VLAN> vlanList = getProvider().getNetworkServices().getVlanSupport().listVlans();
-                        while (vlanList.iterator().hasNext()) {
-                            VLAN v = vlanList.iterator().next();
-                            if (v.getName().equals(parentName)) {
-                                // found a match
-                                parentId = v.getProviderVlanId();
-                                break;
-                            }
+                        VLAN parent = new LaunchResolver(getProvider()).getVlanByName(parentName);
+
+                        if (parent != null && parent.getName().equals(parentName)) {
+                            parentId = parent.getProviderVlanId();
                         }
                         if (parentId == null || parentHref == null) {
                             throw new CloudException("Unable to find the network config settings - cannot specify network for this vApp");
@@ -538,335 +918,529 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             }
 
             final String fvmId = vmId;
-            Thread t = new Thread() {
-                public void run() {
+            final String fvappId = vappId;
+            LaunchProgress progress = new LaunchProgress(vm, vappId) {
+                protected void configure() throws Exception {
                     try {
-                        Map<String,Object> metadata = withLaunchOptions.getMetaData();
-
-                        if( metadata == null ) {
-                            metadata = new HashMap<String, Object>();
-                        }
-                        metadata.put("dsnImageId", img.getProviderMachineImageId());
-                        metadata.put("dsnCreated", String.valueOf(System.currentTimeMillis()));
-                        method.postMetaData("vApp", fvmId, metadata);
-                    }
-                    catch( Throwable warn ) {
-                        logger.warn("Error updating meta-data on launch: " + warn.getMessage());
-                    }
-
-                    NodeList vapps = doc.getElementsByTagName(nsString + "VApp");
-
-                    if( vapps.getLength() < 1 ) {
-                        logger.error("The instantiation operation succeeded, but no vApp was present");
-                    }
-                    Node vapp = vapps.item(0);
-                    Node href = vapp.getAttributes().getNamedItem("href");
-
-                    if( href != null ) {
-                        String vappId = ((vCloud)getProvider()).toID(href.getNodeValue().trim());
-                        String vAppResponse;
+                        enter(Stage.METADATA);
                         try {
-                            vAppResponse = method.get("vApp", vappId);
-                        } catch (CloudException e) {
-                            logger.error("Error getting vApp " + vappId, e);
-                            return;
-                        } catch (InternalException e) {
-                            logger.error("Error getting vApp " + vappId, e);
-                            return;
-                        }
+                            Map<String,Object> metadata = withLaunchOptions.getMetaData();
 
-                        if( vAppResponse == null || vAppResponse.equals("") ) {
-                            logger.error("vApp " + vappId + " went away");
+                            if( metadata == null ) {
+                                metadata = new HashMap<String, Object>();
+                            }
+                            metadata.put("dsnImageId", img.getProviderMachineImageId());
+                            metadata.put("dsnCreated", String.valueOf(System.currentTimeMillis()));
+                            method.postMetaData("vApp", fvmId, metadata);
                         }
-                        Document vAppDoc;
-                        try {
-                            vAppDoc = method.parseXML(vAppResponse);
-                        } catch (CloudException e) {
-                            logger.error("Error parsing vApp " + vappId + " xml: ", e);
-                            return;
-                        } catch (InternalException e) {
-                            logger.error("Error parsing vApp " + vappId + " xml: ", e);
-                            return;
+                        catch( Throwable warn ) {
+                            logger.warn("Error updating meta-data on launch: " + warn.getMessage());
                         }
-                        String docElementTagName = vAppDoc.getDocumentElement().getTagName();
-                        String nsString = "";
-                        if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                        vapps = vAppDoc.getElementsByTagName(nsString + "VApp");
+
+                        NodeList vapps = doc.getElementsByTagName(nsString + "VApp");
+
                         if( vapps.getLength() < 1 ) {
-                            logger.error("No VApp in vApp request for " + vappId);
+                            logger.error("The instantiation operation succeeded, but no vApp was present");
                         }
-                        vapp = vapps.item(0);
-                        NodeList tasks = vapp.getChildNodes();
+                        Node vapp = vapps.item(0);
+                        Node href = vapp.getAttributes().getNamedItem("href");
 
-                        for( int i=0; i<tasks.getLength(); i++ ) {
-                            Node task = tasks.item(i);
-                            if(task.getNodeName().contains(":"))nsString = task.getNodeName().substring(0, task.getNodeName().indexOf(":") + 1);
-                            else nsString = "";
+                        if( href != null ) {
+                            String vappId = ((vCloud)getProvider()).toID(href.getNodeValue().trim());
+                            String vAppResponse;
+                            try {
+                                vAppResponse = method.get("vApp", vappId);
+                            } catch (CloudException e) {
+                                logger.error("Error getting vApp " + vappId, e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error getting vApp " + vappId, e);
+                                throw e;
+                            }
 
-                            if( task.getNodeName().equalsIgnoreCase(nsString + "Task") ) {
-                                href = task.getAttributes().getNamedItem("href");
-                                if( href != null ) {
-                                    try {
-                                        method.waitFor(href.getNodeValue().trim());
-                                    } catch (CloudException e) {
-                                        logger.error("Error waiting for task to complete.", e);
+                            if( vAppResponse == null || vAppResponse.equals("") ) {
+                                logger.error("vApp " + vappId + " went away");
+                            }
+                            Document vAppDoc;
+                            try {
+                                vAppDoc = method.parseXML(vAppResponse);
+                            } catch (CloudException e) {
+                                logger.error("Error parsing vApp " + vappId + " xml: ", e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error parsing vApp " + vappId + " xml: ", e);
+                                throw e;
+                            }
+                            String docElementTagName = vAppDoc.getDocumentElement().getTagName();
+                            String nsString = "";
+                            if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                            vapps = vAppDoc.getElementsByTagName(nsString + "VApp");
+                            if( vapps.getLength() < 1 ) {
+                                logger.error("No VApp in vApp request for " + vappId);
+                            }
+                            vapp = vapps.item(0);
+                            NodeList tasks = vapp.getChildNodes();
+
+                            enter(Stage.VAPP_TASKS);
+
+                            for( int i=0; i<tasks.getLength(); i++ ) {
+                                Node task = tasks.item(i);
+                                if(task.getNodeName().contains(":"))nsString = task.getNodeName().substring(0, task.getNodeName().indexOf(":") + 1);
+                                else nsString = "";
+
+                                if( task.getNodeName().equalsIgnoreCase(nsString + "Task") ) {
+                                    href = task.getAttributes().getNamedItem("href");
+                                    if( href != null ) {
+                                        try {
+                                            method.waitFor(href.getNodeValue().trim());
+                                        } catch (CloudException e) {
+                                            logger.error("Error waiting for task to complete.", e);
+                                        }
                                     }
                                 }
                             }
-                        }
 
-                        String vAppGetResponse;
-                        try {
-                            vAppGetResponse = method.get("vApp", vappId);
-                        } catch (CloudException e) {
-                            logger.error("Error getting vApp " + vappId, e);
-                            return;
-                        } catch (InternalException e) {
-                            logger.error("Error getting vApp " + vappId, e);
-                            return;
-                        }
+                            String vAppGetResponse;
+                            try {
+                                vAppGetResponse = method.get("vApp", vappId);
+                            } catch (CloudException e) {
+                                logger.error("Error getting vApp " + vappId, e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error getting vApp " + vappId, e);
+                                throw e;
+                            }
 
-                        if( vAppGetResponse == null ) {
-                            logger.error("vApp went away");
-                        }
+                            if( vAppGetResponse == null ) {
+                                logger.error("vApp went away");
+                            }
 
-                        try {
-                            vAppDoc = method.parseXML(vAppGetResponse);
-                        } catch (CloudException e) {
-                            logger.error("Error parsing vApp " + vappId + " xml: ", e);
-                            return;
-                        } catch (InternalException e) {
-                            logger.error("Error parsing vApp " + vappId + " xml: ", e);
-                            return;
-                        }
-                        docElementTagName = vAppDoc.getDocumentElement().getTagName();
-                        nsString = "";
-                        if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                        vapps = vAppDoc.getElementsByTagName(nsString + "VApp");
-                        if( vapps.getLength() < 1 ) {
-                            logger.error("vApp went away");
-                        }
-                        vapp = vapps.item(0);
+                            try {
+                                vAppDoc = method.parseXML(vAppGetResponse);
+                            } catch (CloudException e) {
+                                logger.error("Error parsing vApp " + vappId + " xml: ", e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error parsing vApp " + vappId + " xml: ", e);
+                                throw e;
+                            }
+                            docElementTagName = vAppDoc.getDocumentElement().getTagName();
+                            nsString = "";
+                            if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                            vapps = vAppDoc.getElementsByTagName(nsString + "VApp");
+                            if( vapps.getLength() < 1 ) {
+                                logger.error("vApp went away");
+                            }
+                            vapp = vapps.item(0);
 
-                        NodeList attributes = vapp.getChildNodes();
-                        String vmId = null;
+                            NodeList attributes = vapp.getChildNodes();
+                            String vmId = null;
 
-                        for( int i=0; i<attributes.getLength(); i++ ) {
-                            Node attribute = attributes.item(i);
-                            if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
-                            else nsString = "";
+                            for( int i=0; i<attributes.getLength(); i++ ) {
+                                Node attribute = attributes.item(i);
+                                if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
+                                else nsString = "";
 
-                            if( attribute.getNodeName().equals(nsString + "Children") && attribute.hasChildNodes() ) {
-                                NodeList children = attribute.getChildNodes();
-                                int count = 1;
-                                for( int j=0; j<children.getLength(); j++ ) {
-                                    Node vm = children.item(j);
+                                if( attribute.getNodeName().equals(nsString + "Children") && attribute.hasChildNodes() ) {
+                                    NodeList children = attribute.getChildNodes();
+                                    int count = 1;
+                                    for( int j=0; j<children.getLength(); j++ ) {
+                                        Node vm = children.item(j);
 
-                                    if(vm.getNodeName().contains(":"))nsString = vm.getNodeName().substring(0, vm.getNodeName().indexOf(":") + 1);
-                                    else nsString = "";
+                                        if(vm.getNodeName().contains(":"))nsString = vm.getNodeName().substring(0, vm.getNodeName().indexOf(":") + 1);
+                                        else nsString = "";
 
-                                    if( vm.getNodeName().equalsIgnoreCase(nsString + "Vm") && vm.hasAttributes() ) {
-                                        href = vm.getAttributes().getNamedItem("href");
-                                        if( href != null ) {
-                                            String suffix = (multipleVMs ? ("-" + count) : "");
-                                            count++;
-                                            String vmUrl = href.getNodeValue().trim();
-
-                                            vmId = ((vCloud)getProvider()).toID(vmUrl);
-
-                                            StringBuilder guestXml = new StringBuilder();
-                                            guestXml.append("<GuestCustomizationSection xmlns=\"http://www.vmware.com/vcloud/v1.5\" ");
-                                            guestXml.append(" xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\" ovf:required=\"false\">");
-
-                                            guestXml.append("<Info xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\">Specifies Guest OS Customization Settings</Info>");
-                                            guestXml.append("<Enabled>true</Enabled>");
-                                            guestXml.append("<ChangeSid>").append(String.valueOf(img.getPlatform().isWindows())).append("</ChangeSid>");
-                                            guestXml.append("<VirtualMachineId>").append(UUID.randomUUID().toString()).append("</VirtualMachineId>");
-                                            guestXml.append("<JoinDomainEnabled>false</JoinDomainEnabled>");
-                                            guestXml.append("<UseOrgSettings>false</UseOrgSettings>");
-
-                                            guestXml.append("<AdminPasswordEnabled>true</AdminPasswordEnabled>");
-                                            if( pw != null ) {
-                                                guestXml.append("<AdminPassword>").append(vCloud.escapeXml(pw)).append("</AdminPassword>");
-                                                //guestXml.append("<AdminPasswordAuto>false</AdminPasswordAuto>");
-                                            }
-                                            else {
-                                                guestXml.append("<AdminPasswordAuto>true</AdminPasswordAuto>");
-                                            }
-                                            guestXml.append("<ResetPasswordRequired>false</ResetPasswordRequired>");
-
-                                            String userData = withLaunchOptions.getUserData();
-                                            if( userData != null && userData.length() > 0 ) {
-                                                guestXml.append("<CustomizationScript>").append(vCloud.escapeXml(userData)).append("</CustomizationScript>");
-                                            } else {
-                                                String customizationScript = parseCustomizationScript(vm);
-                                                if (customizationScript != null) {
-                                                    guestXml.append("<CustomizationScript>").append(vCloud.escapeXml(customizationScript)).append("</CustomizationScript>");
+                                        if( vm.getNodeName().equalsIgnoreCase(nsString + "Vm") && vm.hasAttributes() ) {
+                                            href = vm.getAttributes().getNamedItem("href");
+                                            if( href != null ) {
+                                                String suffix = (multipleVMs ? ("-" + count) : "");
+                                                count++;
+                                                String vmUrl = href.getNodeValue().trim();
+
+                                                vmId = ((vCloud)getProvider()).toID(vmUrl);
+
+                                                StringBuilder guestXml = new StringBuilder();
+                                                guestXml.append("<GuestCustomizationSection xmlns=\"http://www.vmware.com/vcloud/v1.5\" ");
+                                                guestXml.append(" xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\" ovf:required=\"false\">");
+
+                                                guestXml.append("<Info xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\">Specifies Guest OS Customization Settings</Info>");
+                                                guestXml.append("<Enabled>true</Enabled>");
+                                                guestXml.append("<ChangeSid>").append(String.valueOf(img.getPlatform().isWindows())).append("</ChangeSid>");
+                                                guestXml.append("<VirtualMachineId>").append(UUID.randomUUID().toString()).append("</VirtualMachineId>");
+                                                guestXml.append("<JoinDomainEnabled>false</JoinDomainEnabled>");
+                                                guestXml.append("<UseOrgSettings>false</UseOrgSettings>");
+
+                                                guestXml.append("<AdminPasswordEnabled>true</AdminPasswordEnabled>");
+                                                if( pw != null ) {
+                                                    guestXml.append("<AdminPassword>").append(vCloud.escapeXml(pw)).append("</AdminPassword>");
+                                                    //guestXml.append("<AdminPasswordAuto>false</AdminPasswordAuto>");
+                                                }
+                                                else {
+                                                    guestXml.append("<AdminPasswordAuto>true</AdminPasswordAuto>");
+                                                }
+                                                guestXml.append("<ResetPasswordRequired>false</ResetPasswordRequired>");
+
+                                                String userData = withLaunchOptions.getUserData();
+                                                if( userData != null && userData.length() > 0 ) {
+                                                    guestXml.append("<CustomizationScript>").append(vCloud.escapeXml(userData)).append("</CustomizationScript>");
+                                                } else {
+                                                    String customizationScript = parseCustomizationScript(vm);
+                                                    if (customizationScript != null) {
+                                                        guestXml.append("<CustomizationScript>").append(vCloud.escapeXml(customizationScript)).append("</CustomizationScript>");
+                                                    }
                                                 }
-                                            }
 
-                                            guestXml.append("<ComputerName>").append(vCloud.escapeXml(validateHostName(withLaunchOptions.getHostName() + suffix))).append("</ComputerName>");
-                                            guestXml.append("</GuestCustomizationSection>");
-
-                                            try {
-                                                method.waitFor(method.put("guestCustomizationSection", vmUrl + "/guestCustomizationSection", method.getMediaTypeForGuestCustomizationSection(), guestXml.toString()));
-                                            } catch (CloudException e) {
-                                                logger.error("Error configuring guest for vApp " + vappId, e);
-                                                return;
-                                            } catch (InternalException e) {
-                                                logger.error("Error configuring guest for vApp " + vappId, e);
-                                                return;
-                                            }
+                                                guestXml.append("<ComputerName>").append(vCloud.escapeXml(validateHostName(withLaunchOptions.getHostName() + suffix))).append("</ComputerName>");
+                                                guestXml.append("</GuestCustomizationSection>");
 
-                                            StringBuilder vmXml = new StringBuilder();
-                                            vmXml.append("<vcloud:Vm xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" ");
-                                            vmXml.append("name=\"").append(vCloud.escapeXml(fullname + suffix)).append("\">");
-                                            vmXml.append("<vcloud:Description>").append(withLaunchOptions.getDescription()).append("</vcloud:Description>");
-                                            vmXml.append("</vcloud:Vm>");
-
-                                            try {
-                                                method.waitFor(method.put("", vmUrl, method.getMediaTypeForVM(), vmXml.toString()));
-                                            } catch (CloudException e) {
-                                                logger.error("Error configuring vm for vApp " + vappId, e);
-                                                return;
-                                            } catch (InternalException e) {
-                                                logger.error("Error configuring vm for vApp " + vappId, e);
-                                                return;
-                                            }
+                                                String networkXml = null;
 
-                                            if( product != null ) {
-
-                                                StringBuilder xml = new StringBuilder();
-
-                                                xml.append("<vcloud:Item " +
-                                                           "xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" " +
-                                                           "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\" " +
-                                                           "vcloud:type=\"application/vnd.vmware.vcloud.rasdItem+xml\" " +
-                                                           "vcloud:href=\"").append(vmUrl).append("/virtualHardwareSection/cpu\">");
-                                                xml.append("<rasd:AllocationUnits>hertz * 10^6</rasd:AllocationUnits>");
-                                                xml.append("<rasd:Description>Number of Virtual CPUs</rasd:Description>");
-                                                xml.append("<rasd:ElementName>").append(String.valueOf(product.getCpuCount())).append(" virtual CPU(s)</rasd:ElementName>");
-                                                xml.append("<rasd:InstanceID>1</rasd:InstanceID>");
-                                                xml.append("<rasd:Reservation>0</rasd:Reservation>");
-                                                xml.append("<rasd:ResourceType>3</rasd:ResourceType>");
-                                                xml.append("<rasd:VirtualQuantity>").append(String.valueOf(product.getCpuCount())).append("</rasd:VirtualQuantity>");
-                                                xml.append("<rasd:Weight>").append(String.valueOf(product.getCpuCount()*1000)).append("</rasd:Weight>");  //changed from 0
-                                                xml.append("<vcloud:Link href=\"").append(vmUrl).append("/virtualHardwareSection/cpu\" rel=\"edit\" type=\"application/vnd.vmware.vcloud.rasdItem+xml\"/>");
-                                                xml.append("</vcloud:Item>");
-
-                                                try {
-                                                    method.waitFor(method.put("virtualHardwareSection/cpu", vmUrl + "/virtualHardwareSection/cpu", method.getMediaTypeForRasdItem(), xml.toString()));
-                                                } catch (CloudException e) {
-                                                    logger.error("Error configuring virtual hardware cpu for vApp " + vappId, e);
-                                                    return;
-                                                } catch (InternalException e) {
-                                                    logger.error("Error configuring virtual hardware cpu for vApp " + vappId, e);
-                                                    return;
+                                                if( product != null && vlan != null ) {
+                                                    networkXml = toNetworkConnectionXml(method, vmUrl, vlan);
                                                 }
-
-                                                xml = new StringBuilder();
-
-                                                xml.append("<vcloud:Item " +
-                                                        "xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" " +
-                                                        "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\" " +
-                                                        "vcloud:type=\"application/vnd.vmware.vcloud.rasdItem+xml\" " +
-                                                        "vcloud:href=\"").append(vmUrl).append("/virtualHardwareSection/memory\">");
-                                                xml.append("<rasd:AllocationUnits>byte * 2^20</rasd:AllocationUnits>");
-                                                xml.append("<rasd:Description>Memory Size</rasd:Description>");
-                                                xml.append("<rasd:ElementName>").append(product.getRamSize().toString()).append("</rasd:ElementName>");
-                                                xml.append("<rasd:InstanceID>2</rasd:InstanceID>");
-                                                xml.append("<rasd:Reservation>0</rasd:Reservation>");
-                                                xml.append("<rasd:ResourceType>4</rasd:ResourceType>");
-                                                xml.append("<rasd:VirtualQuantity>").append(String.valueOf(product.getRamSize().intValue())).append("</rasd:VirtualQuantity>");
-                                                xml.append("<rasd:Weight>").append(String.valueOf(product.getRamSize().intValue()*10)).append("</rasd:Weight>");
-                                                xml.append("<vcloud:Link href=\"").append(vmUrl).append("/virtualHardwareSection/memory\" rel=\"edit\" type=\"application/vnd.vmware.vcloud.rasdItem+xml\"/>");
-                                                xml.append("</vcloud:Item>");
-                                                try {
-                                                    method.waitFor(method.put("virtualHardwareSection/memory", vmUrl + "/virtualHardwareSection/memory", method.getMediaTypeForRasdItem(), xml.toString()));
-                                                } catch (CloudException e) {
-                                                    logger.error("Error configuring virtual hardware memory for vApp " + vappId, e);
-                                                    return;
-                                                } catch (InternalException e) {
-                                                    logger.error("Error configuring virtual hardware memory for vApp " + vappId, e);
-                                                    return;
+                                                boolean reconfigured = false;
+
+                                                if( vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+                                                    String payload = toReconfigureVmXml(method, vAppDoc, vm, fullname + suffix, withLaunchOptions.getDescription(), guestXml.toString(), product, networkXml);
+
+                                                    if( payload != null ) {
+                                                        enter(Stage.RECONFIGURE);
+                                                        try {
+                                                            method.waitFor(method.post("reconfigureVm", vmUrl + "/action/reconfigureVm", method.getMediaTypeForVM(), payload));
+                                                            reconfigured = true;
+                                                        }
+                                                        catch( CloudException e ) {
+                                                            logger.warn("Unable to reconfigure " + vmId + " in a single call, configuring it section by section: " + e.getMessage());
+                                                        }
+                                                    }
                                                 }
+                                                if( !reconfigured ) {
+                                                    enter(Stage.GUEST_CUSTOMIZATION);
+                                                    try {
+                                                        method.waitFor(method.put("guestCustomizationSection", vmUrl + "/guestCustomizationSection", method.getMediaTypeForGuestCustomizationSection(), guestXml.toString()));
+                                                    } catch (CloudException e) {
+                                                        logger.error("Error configuring guest for vApp " + vappId, e);
+                                                        throw e;
+                                                    } catch (InternalException e) {
+                                                        logger.error("Error configuring guest for vApp " + vappId, e);
+                                                        throw e;
+                                                    }
 
+                                                    StringBuilder vmXml = new StringBuilder();
+                                                    vmXml.append("<vcloud:Vm xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" ");
+                                                    vmXml.append("name=\"").append(vCloud.escapeXml(fullname + suffix)).append("\">");
+                                                    vmXml.append("<vcloud:Description>").append(withLaunchOptions.getDescription()).append("</vcloud:Description>");
+                                                    vmXml.append("</vcloud:Vm>");
 
-                                                if( vlan != null ) {
-                                                    xml = new StringBuilder();
-                                                    xml.append("<NetworkConnectionSection href=\"").append(vmUrl).append("/networkConnectionSection/").append("\" ");
-                                                    xml.append("xmlns=\"http://www.vmware.com/vcloud/v1.5\" ");
-                                                    xml.append(" type=\"").append(method.getMediaTypeForNetworkConnectionSection()).append("\">");
-                                                    xml.append("<Info xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\">Specifies the available VM network connections</Info>");
-                                                    xml.append("<PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex>");
-                                                    xml.append("<NetworkConnection network=\"").append(vCloud.escapeXml(vlan.getName())).append("\">");
-                                                    xml.append("<NetworkConnectionIndex>0</NetworkConnectionIndex>");
-                                                    xml.append("<IsConnected>true</IsConnected>");
-                                                    xml.append("<IpAddressAllocationMode>POOL</IpAddressAllocationMode>");
-                                                    xml.append("</NetworkConnection>");
-                                                    xml.append("</NetworkConnectionSection>");
+                                                    enter(Stage.VM);
                                                     try {
-                                                        method.waitFor(method.put("networkConnectionSection", vmUrl + "/networkConnectionSection", method.getMediaTypeForNetworkConnectionSection(), xml.toString()));
+                                                        method.waitFor(method.put("", vmUrl, method.getMediaTypeForVM(), vmXml.toString()));
                                                     } catch (CloudException e) {
-                                                        logger.error("Error configuring virtual hardware for vApp " + vappId, e);
-                                                        return;
+                                                        logger.error("Error configuring vm for vApp " + vappId, e);
+                                                        throw e;
                                                     } catch (InternalException e) {
-                                                        logger.error("Error configuring virtual hardware for vApp " + vappId, e);
-                                                        return;
+                                                        logger.error("Error configuring vm for vApp " + vappId, e);
+                                                        throw e;
+                                                    }
+
+                                                    if( product != null ) {
+                                                        enter(Stage.CPU);
+                                                        try {
+                                                            method.waitFor(method.put("virtualHardwareSection/cpu", vmUrl + "/virtualHardwareSection/cpu", method.getMediaTypeForRasdItem(), toCpuItemXml(vmUrl, product)));
+                                                        } catch (CloudException e) {
+                                                            logger.error("Error configuring virtual hardware cpu for vApp " + vappId, e);
+                                                            throw e;
+                                                        } catch (InternalException e) {
+                                                            logger.error("Error configuring virtual hardware cpu for vApp " + vappId, e);
+                                                            throw e;
+                                                        }
+
+                                                        enter(Stage.MEMORY);
+                                                        try {
+                                                            method.waitFor(method.put("virtualHardwareSection/memory", vmUrl + "/virtualHardwareSection/memory", method.getMediaTypeForRasdItem(), toMemoryItemXml(vmUrl, product)));
+                                                        } catch (CloudException e) {
+                                                            logger.error("Error configuring virtual hardware memory for vApp " + vappId, e);
+                                                            throw e;
+                                                        } catch (InternalException e) {
+                                                            logger.error("Error configuring virtual hardware memory for vApp " + vappId, e);
+                                                            throw e;
+                                                        }
+
+
+                                                        if( networkXml != null ) {
+                                                            enter(Stage.NETWORK);
+                                                            try {
+                                                                method.waitFor(method.put("networkConnectionSection", vmUrl + "/networkConnectionSection", method.getMediaTypeForNetworkConnectionSection(), networkXml));
+                                                            } catch (CloudException e) {
+                                                                logger.error("Error configuring virtual hardware for vApp " + vappId, e);
+                                                                throw e;
+                                                            } catch (InternalException e) {
+                                                                logger.error("Error configuring virtual hardware for vApp " + vappId, e);
+                                                                throw e;
+                                                            }
+                                                        }
                                                     }
                                                 }
+                                                break;
                                             }
-                                            break;
                                         }
                                     }
                                 }
+                                if( vmId != null ) {
+                                    break;
+                                }
                             }
-                            if( vmId != null ) {
-                                break;
+                            if( vmId == null ) {
+                                logger.error("No virtual machines exist in " + vappId);
+                            }
+                            enter(Stage.DEPLOY);
+                            try {
+                                deploy(vappId);
+                            } catch (CloudException e) {
+                                logger.error("Error deploying vApp " + vappId, e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error deploying vApp " + vappId, e);
+                                throw e;
+                            }
+                            enter(Stage.POWER_ON);
+                            try {
+                                startVapp(vappId, true);
+                            } catch (CloudException e) {
+                                logger.error("Error starting vApp " + vappId, e);
+                                throw e;
+                            } catch (InternalException e) {
+                                logger.error("Error starting vApp " + vappId, e);
+                                throw e;
                             }
                         }
-                        if( vmId == null ) {
-                            logger.error("No virtual machines exist in " + vappId);
-                        }
-                        try {
-                            deploy(vappId);
-                        } catch (CloudException e) {
-                            logger.error("Error deploying vApp " + vappId, e);
-                            return;
-                        } catch (InternalException e) {
-                            logger.error("Error deploying vApp " + vappId, e);
-                            return;
-                        }
-                        try {
-                            startVapp(vappId, true);
-                        } catch (CloudException e) {
-                            logger.error("Error starting vApp " + vappId, e);
-                        } catch (InternalException e) {
-                            logger.error("Error starting vApp " + vappId, e);
-                        }
+                    }
+                    finally {
+                        VirtualMachineCache.invalidate(getProvider(), fvmId);
+                        VirtualMachineCache.invalidate(getProvider(), fvappId);
                     }
                 }
             };
 
-            t.setName("Configure vCloud VM " + vm.getProviderVirtualMachineId());
-            t.setDaemon(true);
-            t.start();
             vm.setProviderMachineImageId(img.getProviderMachineImageId());
             if (pw != null) {
                 vm.setRootPassword(pw);
             }
-            return vm;
+            // the caller now owns this instance, so it must not be served to anyone else
+            VirtualMachineCache.invalidate(getProvider(), vm.getProviderVirtualMachineId());
+            LaunchPipeline.submit(getProvider(), progress);
+            return progress;
         }
         finally {
             APITrace.end();
         }
     }
 
-    private String parseVmId(NodeList vmNodes){
-        String vmId = "";
-        Node vmNode = vmNodes.item(0);
+    private @Nonnull String toNetworkConnectionXml(@Nonnull vCloudMethod method, @Nonnull String vmUrl, @Nonnull VLAN vlan) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<NetworkConnectionSection href=\"").append(vmUrl).append("/networkConnectionSection/").append("\" ");
+        xml.append("xmlns=\"http://www.vmware.com/vcloud/v1.5\" ");
+        xml.append(" type=\"").append(method.getMediaTypeForNetworkConnectionSection()).append("\">");
+        xml.append("<Info xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\">Specifies the available VM network connections</Info>");
+        xml.append("<PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex>");
+        xml.append("<NetworkConnection network=\"").append(vCloud.escapeXml(vlan.getName())).append("\">");
+        xml.append("<NetworkConnectionIndex>0</NetworkConnectionIndex>");
+        xml.append("<IsConnected>true</IsConnected>");
+        xml.append("<IpAddressAllocationMode>POOL</IpAddressAllocationMode>");
+        xml.append("</NetworkConnection>");
+        xml.append("</NetworkConnectionSection>");
+        return xml.toString();
+    }
 
-        if( vmNode != null && vmNode.hasAttributes() ) {
+    /**
+     * Builds the body of a <code>reconfigureVm</code> action (vCloud 5.1 and later) that applies in one task what
+     * launch otherwise does with separate guest customization, VM, CPU, memory and network updates. The body is the
+     * VM as currently described in its vApp with those parts replaced, so nothing else about the VM changes.
+     * @param method the method used to access vCloud
+     * @param doc the vApp document containing the VM
+     * @param vm the VM element within the document
+     * @param name the new name of the VM
+     * @param description the new description of the VM
+     * @param guestXml the new guest customization section
+     * @param product the product whose CPU count and memory to apply, if any
+     * @param networkXml the new network connection section, if any
+     * @return the body of the action, or <code>null</code> if the VM lacks a section that needs replacing
+     * @throws CloudException one of the sections could not be parsed
+     * @throws InternalException an error occurred within Dasein Cloud building the body
+     */
+    private @Nullable String toReconfigureVmXml(@Nonnull vCloudMethod method, @Nonnull Document doc, @Nonnull Node vm, @Nonnull String name, @Nullable String description, @Nonnull String guestXml, @Nullable VirtualMachineProduct product, @Nullable String networkXml) throws CloudException, InternalException {
+        Element copy = (Element)vm.cloneNode(true);
+        String nsString = "";
+
+        if( copy.getTagName().contains(":") ) {
+            nsString = copy.getTagName().substring(0, copy.getTagName().indexOf(":") + 1);
+        }
+        // the namespaces are declared on the vApp, so they must travel with the VM
+        copyNamespaces(doc, copy);
+        copy.setAttribute("name", name);
+
+        Node guestSection = null, networkSection = null, hardwareSection = null, descriptionNode = null, lastLink = null;
+        NodeList children = copy.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            Node child = children.item(i);
+            String n = child.getNodeName();
+
+            if( n.equalsIgnoreCase(nsString + "GuestCustomizationSection") ) {
+                guestSection = child;
+            }
+            else if( n.equalsIgnoreCase(nsString + "NetworkConnectionSection") ) {
+                networkSection = child;
+            }
+            else if( n.equalsIgnoreCase(nsString + "Description") ) {
+                descriptionNode = child;
+            }
+            else if( n.equalsIgnoreCase(nsString + "Link") ) {
+                lastLink = child;
+            }
+            else if( n.endsWith("VirtualHardwareSection") ) {
+                hardwareSection = child;
+            }
+        }
+        if( guestSection == null || (networkXml != null && networkSection == null) || (product != null && hardwareSection == null) ) {
+            return null;
+        }
+        if( description != null ) {
+            if( descriptionNode == null ) {
+                descriptionNode = doc.createElement(nsString + "Description");
+                // the schema puts Description straight after the links of the entity
+                copy.insertBefore(descriptionNode, lastLink == null ? copy.getFirstChild() : lastLink.getNextSibling());
+            }
+            descriptionNode.setTextContent(description);
+        }
+        copy.replaceChild(doc.importNode(method.parseXML(guestXml).getDocumentElement(), true), guestSection);
+        if( networkXml != null ) {
+            copy.replaceChild(doc.importNode(method.parseXML(networkXml).getDocumentElement(), true), networkSection);
+        }
+        if( product != null ) {
+            Node cpu = getHardwareItem(hardwareSection, RESOURCE_CPU);
+            Node memory = getHardwareItem(hardwareSection, RESOURCE_MEMORY);
+
+            if( cpu == null || memory == null ) {
+                return null;
+            }
+            setCpu(cpu, product);
+            setMemory(memory, product);
+        }
+        return method.toXML(copy);
+    }
+
+    private void copyNamespaces(@Nonnull Document doc, @Nonnull Element target) {
+        NamedNodeMap rootAttributes = doc.getDocumentElement().getAttributes();
+
+        for( int i=0; i<rootAttributes.getLength(); i++ ) {
+            Node attribute = rootAttributes.item(i);
+
+            if( attribute.getNodeName().startsWith("xmlns") && !target.hasAttribute(attribute.getNodeName()) ) {
+                target.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
+    }
+
+    private @Nullable Node getHardwareItem(@Nonnull Node hardwareSection, @Nonnull String resourceType) {
+        NodeList items = hardwareSection.getChildNodes();
+
+        for( int i=0; i<items.getLength(); i++ ) {
+            Node item = items.item(i);
+
+            if( item.getNodeName().endsWith("Item") && resourceType.equals(getRasdValue(item, "ResourceType")) ) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void setCpu(@Nonnull Node item, @Nonnull VirtualMachineProduct product) {
+        setRasdValue(item, "ElementName", product.getCpuCount() + " virtual CPU(s)");
+        setRasdValue(item, "VirtualQuantity", String.valueOf(product.getCpuCount()));
+        setRasdValue(item, "Weight", String.valueOf(product.getCpuCount()*1000));
+    }
+
+    private void setMemory(@Nonnull Node item, @Nonnull VirtualMachineProduct product) {
+        setRasdValue(item, "ElementName", product.getRamSize().toString());
+        setRasdValue(item, "VirtualQuantity", String.valueOf(product.getRamSize().intValue()));
+        setRasdValue(item, "Weight", String.valueOf(product.getRamSize().intValue()*10));
+    }
+
+    private @Nonnull String toCpuItemXml(@Nonnull String vmUrl, @Nonnull VirtualMachineProduct product) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<vcloud:Item " +
+                   "xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" " +
+                   "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\" " +
+                   "vcloud:type=\"application/vnd.vmware.vcloud.rasdItem+xml\" " +
+                   "vcloud:href=\"").append(vmUrl).append("/virtualHardwareSection/cpu\">");
+        xml.append("<rasd:AllocationUnits>hertz * 10^6</rasd:AllocationUnits>");
+        xml.append("<rasd:Description>Number of Virtual CPUs</rasd:Description>");
+        xml.append("<rasd:ElementName>").append(String.valueOf(product.getCpuCount())).append(" virtual CPU(s)</rasd:ElementName>");
+        xml.append("<rasd:InstanceID>1</rasd:InstanceID>");
+        xml.append("<rasd:Reservation>0</rasd:Reservation>");
+        xml.append("<rasd:ResourceType>3</rasd:ResourceType>");
+        xml.append("<rasd:VirtualQuantity>").append(String.valueOf(product.getCpuCount())).append("</rasd:VirtualQuantity>");
+        xml.append("<rasd:Weight>").append(String.valueOf(product.getCpuCount()*1000)).append("</rasd:Weight>");  //changed from 0
+        xml.append("<vcloud:Link href=\"").append(vmUrl).append("/virtualHardwareSection/cpu\" rel=\"edit\" type=\"application/vnd.vmware.vcloud.rasdItem+xml\"/>");
+        xml.append("</vcloud:Item>");
+        return xml.toString();
+    }
+
+    private @Nonnull String toMemoryItemXml(@Nonnull String vmUrl, @Nonnull VirtualMachineProduct product) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<vcloud:Item " +
+                "xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" " +
+                "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\" " +
+                "vcloud:type=\"application/vnd.vmware.vcloud.rasdItem+xml\" " +
+                "vcloud:href=\"").append(vmUrl).append("/virtualHardwareSection/memory\">");
+        xml.append("<rasd:AllocationUnits>byte * 2^20</rasd:AllocationUnits>");
+        xml.append("<rasd:Description>Memory Size</rasd:Description>");
+        xml.append("<rasd:ElementName>").append(product.getRamSize().toString()).append("</rasd:ElementName>");
+        xml.append("<rasd:InstanceID>2</rasd:InstanceID>");
+        xml.append("<rasd:Reservation>0</rasd:Reservation>");
+        xml.append("<rasd:ResourceType>4</rasd:ResourceType>");
+        xml.append("<rasd:VirtualQuantity>").append(String.valueOf(product.getRamSize().intValue())).append("</rasd:VirtualQuantity>");
+        xml.append("<rasd:Weight>").append(String.valueOf(product.getRamSize().intValue()*10)).append("</rasd:Weight>");
+        xml.append("<vcloud:Link href=\"").append(vmUrl).append("/virtualHardwareSection/memory\" rel=\"edit\" type=\"application/vnd.vmware.vcloud.rasdItem+xml\"/>");
+        xml.append("</vcloud:Item>");
+        return xml.toString();
+    }
+
+    private @Nullable String getRasdValue(@Nonnull Node item, @Nonnull String field) {
+        NodeList values = item.getChildNodes();
+
+        for( int i=0; i<values.getLength(); i++ ) {
+            Node value = values.item(i);
+
+            if( value.getNodeName().endsWith(":" + field) || value.getNodeName().equals(field) ) {
+                return value.getTextContent().trim();
+            }
+        }
+        return null;
+    }
+
+    private void setRasdValue(@Nonnull Node item, @Nonnull String field, @Nonnull String text) {
+        NodeList values = item.getChildNodes();
+
+        for( int i=0; i<values.getLength(); i++ ) {
+            Node value = values.item(i);
+
+            if( value.getNodeName().endsWith(":" + field) || value.getNodeName().equals(field) ) {
+                value.setTextContent(text);
+                return;
+            }
+        }
+    }
+
+    private String parseVmId(NodeList vmNodes){
+        String vmId = "";
+        Node vmNode = vmNodes.item(0);
+
+        if( vmNode != null && vmNode.hasAttributes() ) {
             Node vmHref = vmNode.getAttributes().getNamedItem("href");
             if( vmHref != null ) {
                 String vmUrl = vmHref.getNodeValue().trim();
@@ -919,263 +1493,975 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     public Iterable<VirtualMachineProduct> listProducts(@Nullable VirtualMachineProductFilterOptions options, @Nullable Architecture architecture) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "listVMProducts");
         try {
-            String cacheName = "productsALL";
-            if( architecture != null ) {
-                cacheName = "products" + architecture.name();
+            ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+
+            for( VirtualMachineProduct prd : getProductCatalog().list(architecture, getContext().getRegionId()) ) {
+                if( options == null || options.matches(prd) ) {
+                    products.add(prd);
+                }
             }
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(getProvider(), cacheName, VirtualMachineProduct.class, CacheLevel.REGION, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Iterable<VirtualMachineProduct> products = cache.get(getContext());
+            return products;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    @Override
+    public Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
+        Cache<Architecture> cache = Cache.getInstance(getProvider(), "architectures", Architecture.class, CacheLevel.CLOUD);
+        Iterable<Architecture> list = cache.get(getContext());
 
-            if( products == null ) {
-                ArrayList<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
+        if( list == null) {
+            ArrayList<Architecture> a = new ArrayList<Architecture>();
 
+            a.add(Architecture.I32);
+            a.add(Architecture.I64);
+            list = a;
+            cache.put(getContext(), Collections.unmodifiableList(a));
+        }
+        return list;
+    }
+
+    @Override
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        return loadVirtualMachines(ProjectionOptions.getInstance());
+    }
+
+    private @Nonnull Iterable<VirtualMachine> loadVirtualMachines(@Nonnull final ProjectionOptions projection) throws InternalException, CloudException {
+        getProvider().hold();
+        PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
+            @Override
+            public void populate(@Nonnull Jiterator<VirtualMachine> iterator) throws Exception {
                 try {
-                    String resource = ((vCloud)getProvider()).getVMProductsResource();
-                    InputStream input = vAppSupport.class.getResourceAsStream(resource);
+                    APITrace.begin(getProvider(), "VM.listVirtualMachines");
+                    try {
+                        Iterable<VLAN> vlans = Collections.emptyList();
 
-                    if( input != null ) {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                        StringBuilder json = new StringBuilder();
-                        String line;
+                        if( projection.includes(Facet.ADDRESSES) ) {
+                            vlans = ((vCloud)getProvider()).getNetworkServices().getVlanSupport().listVlans();
+                        }
+                        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
 
-                        while( (line = reader.readLine()) != null ) {
-                            json.append(line);
-                            json.append("\n");
+                        if( method.isQuerySupported() && loadVmsFromQuery(method, null, null, projection, iterator, vlans) ) {
+                            return;
                         }
-                        JSONArray arr = new JSONArray(json.toString());
-                        JSONObject toCache = null;
+                        ParallelTasks<List<VirtualMachine>> tasks = new ParallelTasks<List<VirtualMachine>>("vApp Loader", ((vCloud)getProvider()).getListParallelism());
 
-                        for( int i=0; i<arr.length(); i++ ) {
-                            JSONObject productSet = arr.getJSONObject(i);
-                            String cloud, provider;
+                        try {
+                            for( DataCenter dc : method.listDataCenters() ) {
+                                String xml = method.get("vdc", dc.getProviderDataCenterId());
 
-                            if( productSet.has("cloud") ) {
-                                cloud = productSet.getString("cloud");
-                            }
-                            else {
-                                continue;
-                            }
-                            if( productSet.has("provider") ) {
-                                provider = productSet.getString("provider");
-                            }
-                            else {
-                                continue;
-                            }
-                            if( !productSet.has("products") ) {
-                                continue;
+                                if( xml != null && !xml.equals("") ) {
+                                    Document doc = method.parseXML(xml);
+                                    String docElementTagName = doc.getDocumentElement().getTagName();
+                                    String nsString = "";
+                                    if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                                    NodeList vdcs = doc.getElementsByTagName(nsString + "Vdc");
+
+                                    if( vdcs.getLength() > 0 ) {
+                                        NodeList attributes = vdcs.item(0).getChildNodes();
+
+                                        for( int i=0; i<attributes.getLength(); i++ ) {
+                                            Node attribute = attributes.item(i);
+                                            if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
+                                            else nsString = "";
+
+                                            if( attribute.getNodeName().equalsIgnoreCase(nsString + "ResourceEntities") && attribute.hasChildNodes() ) {
+                                                NodeList resources = attribute.getChildNodes();
+
+                                                for( int j=0; j<resources.getLength(); j++ ) {
+                                                    Node resource = resources.item(j);
+
+                                                    if( resource.getNodeName().equalsIgnoreCase(nsString + "ResourceEntity") && resource.hasAttributes() ) {
+                                                        Node type = resource.getAttributes().getNamedItem("type");
+
+                                                        if( type != null && type.getNodeValue().equalsIgnoreCase(method.getMediaTypeForVApp()) ) {
+                                                            Node href = resource.getAttributes().getNamedItem("href");
+
+                                                            Callable<List<VirtualMachine>> loader = newVmLoader(dc.getProviderDataCenterId(), ((vCloud)getProvider()).toID(href.getNodeValue().trim()), projection, vlans);
+
+                                                            pushAll(iterator, tasks.submit(loader));
+                                                        }
+                                                    }
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
                             }
-                            if( toCache == null || (provider.equals("default") && cloud.equals("default")) ) {
-                                toCache = productSet;
+                            Future<List<VirtualMachine>> f;
+
+                            while( (f = tasks.take()) != null ) {
+                                pushAll(iterator, Collections.singletonList(f));
                             }
-                            if( provider.equalsIgnoreCase(getProvider().getProviderName()) && cloud.equalsIgnoreCase(getProvider().getCloudName()) ) {
-                                toCache = productSet;
-                                break;
+                        }
+                        finally {
+                            tasks.shutdown();
+                        }
+                    }
+                    finally {
+                        APITrace.end();
+                    }
+                }
+                finally {
+                    getProvider().release();
+                }
+            }
+        });
+        populator.populate();
+        return populator.getResult();
+    }
+
+    /**
+     * Lists the virtual machines in this region from <code>vm</code> query records rather than walking every vApp
+     * document. Only 1.5 and later support the query service.
+     * @param method the method used to access vCloud
+     * @param filter an additional filter expression narrowing the records on the server, if any
+     * @param options the client-side filter every virtual machine must also pass, if any
+     * @param projection the facets to populate
+     * @param vms the iterator receiving the virtual machines
+     * @param vlans the VLANs against which NIC networks are matched
+     * @return false if the query service refused the query, in which case the caller must fall back to the vApp walk
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred processing the request in vCloud
+     */
+    private boolean loadVmsFromQuery(@Nonnull vCloudMethod method, @Nullable String filter, @Nullable final VMFilterOptions options, @Nonnull final ProjectionOptions projection, @Nonnull Jiterator<VirtualMachine> vms, @Nonnull final Iterable<VLAN> vlans) throws InternalException, CloudException {
+        final String fields = (vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ? toQueryFields(projection) : null);
+        Iterable<vCloudMethod.QueryRecord> records = method.query("vm", "isVAppTemplate==false" + (filter == null ? "" : ";(" + filter + ")"), fields);
+
+        if( records == null ) {
+            return false;
+        }
+        final TreeSet<String> vdcIds = new TreeSet<String>();
+
+        for( DataCenter dc : method.listDataCenters() ) {
+            vdcIds.add(dc.getProviderDataCenterId());
+        }
+        ParallelTasks<List<VirtualMachine>> tasks = new ParallelTasks<List<VirtualMachine>>("VM Loader", ((vCloud)getProvider()).getListParallelism());
+
+        try {
+            for( final vCloudMethod.QueryRecord record : records ) {
+                pushAll(vms, tasks.submit(new Callable<List<VirtualMachine>>() {
+                    public List<VirtualMachine> call() {
+                        try {
+                            VirtualMachine vm = toVirtualMachine(record, projection, vlans, fields != null);
+
+                            if( vm != null && vdcIds.contains(vm.getProviderDataCenterId()) && (options == null || options.matches(vm)) ) {
+                                return Collections.singletonList(vm);
                             }
                         }
-                        if( toCache == null ) {
-                            logger.warn("No products were defined");
-                            return Collections.emptyList();
+                        catch( Throwable t ) {
+                            logger.warn("Unable to load VM " + record.getHref() + ": " + t.getMessage());
                         }
-                        JSONArray plist = toCache.getJSONArray("products");
+                        return Collections.emptyList();
+                    }
+                }));
+            }
+            Future<List<VirtualMachine>> f;
 
-                        for( int i=0; i<plist.length(); i++ ) {
-                            JSONObject product = plist.getJSONObject(i);
-                            boolean supported = false;
+            while( (f = tasks.take()) != null ) {
+                pushAll(vms, Collections.singletonList(f));
+            }
+        }
+        catch( vCloudMethod.QueryException e ) {
+            e.rethrow();
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            tasks.shutdown();
+        }
+        return true;
+    }
 
-                            // If architecture is specified, check if product matches
-                            if( architecture != null && product.has("architectures") ) {
-                                JSONArray architectures = product.getJSONArray("architectures");
+    /**
+     * The <code>vm</code> record fields read by {@link #toVirtualMachine(vCloudMethod.QueryRecord, ProjectionOptions, Iterable, boolean)}
+     * for the given facets. With metadata, the launch provenance is requested too so that it arrives with the record
+     * instead of costing a request per VM.
+     * @param projection the facets to populate
+     * @return the value of the <code>fields</code> parameter
+     */
+    private @Nonnull String toQueryFields(@Nonnull ProjectionOptions projection) {
+        StringBuilder fields = new StringBuilder("name,vdc,container,status,guestOs");
 
-                                for( int j=0; j<architectures.length(); j++ ) {
-                                    String a = architectures.getString(j);
+        if( projection.includes(Facet.ADDRESSES) ) {
+            fields.append(",ipAddress,networkName");
+        }
+        if( projection.includes(Facet.HARDWARE) ) {
+            fields.append(",numberOfCpus,memoryMB");
+        }
+        if( projection.includes(Facet.METADATA) ) {
+            fields.append(",metadata:dsnCreated,metadata:dsnImageId");
+        }
+        return fields.toString();
+    }
 
-                                    if( architecture.name().equals(a) ) {
-                                        supported = true;
-                                        break;
-                                    }
-                                }
-                                if( !supported ) {
-                                    continue;
+    /**
+     * Creates a task loading the virtual machines in a single vApp. Failures are logged against the vApp and yield an
+     * empty list so that one broken vApp does not abort the listing of the others.
+     * @param vdcId the VDC in which the vApp lives
+     * @param vappId the vApp whose virtual machines are loaded
+     * @param projection the facets to populate
+     * @param vlans the VLANs against which NIC networks are matched
+     * @return the task
+     */
+    private @Nonnull Callable<List<VirtualMachine>> newVmLoader(@Nonnull final String vdcId, @Nonnull final String vappId, @Nonnull final ProjectionOptions projection, @Nonnull final Iterable<VLAN> vlans) {
+        return new Callable<List<VirtualMachine>>() {
+            public List<VirtualMachine> call() {
+                ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+
+                try {
+                    loadVmsFor(vdcId, vappId, projection, list, vlans);
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to load VMs for vApp " + vappId + " in " + vdcId + ": " + t.getMessage());
+                }
+                return list;
+            }
+        };
+    }
+
+    private void pushAll(@Nonnull Jiterator<VirtualMachine> vms, @Nonnull List<Future<List<VirtualMachine>>> done) throws InterruptedException {
+        for( Future<List<VirtualMachine>> f : done ) {
+            try {
+                for( VirtualMachine vm : f.get() ) {
+                    vms.push(vm);
+                }
+            }
+            catch( ExecutionException e ) {
+                logger.warn("Unable to load VMs: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Translates as much of the filter options as possible into a query service filter. The result may match more
+     * virtual machines than the options do, but never fewer, so results must still pass {@link VMFilterOptions#matches(VirtualMachine)}.
+     * @param options the filter options
+     * @return a filter expression, or <code>null</code> if nothing can be pushed to the server
+     */
+    private @Nullable String toQueryFilter(@Nonnull VMFilterOptions options) {
+        boolean any = options.isMatchesAny();
+        ArrayList<String> predicates = new ArrayList<String>();
+        Map<String,String> tags = options.getTags();
+
+        if( tags != null && !tags.isEmpty() ) {
+            String f = vCloudMethod.toMetaDataFilter(tags, any);
+
+            if( f != null ) {
+                predicates.add("(" + f + ")");
+            }
+            else if( any ) {
+                return null;
+            }
+        }
+        String regex = options.getRegex();
+
+        if( regex != null ) {
+            String literal = regex;
+
+            if( literal.startsWith("^") ) {
+                literal = literal.substring(1);
+            }
+            if( literal.endsWith("$") ) {
+                literal = literal.substring(0, literal.length()-1);
+            }
+            if( literal.startsWith(".*") ) {
+                literal = literal.substring(2);
+            }
+            if( literal.endsWith(".*") ) {
+                literal = literal.substring(0, literal.length()-2);
+            }
+            if( literal.matches("[A-Za-z0-9 _-]+") ) {
+                predicates.add("name==*" + literal + "*");
+            }
+            else if( any ) {
+                return null;
+            }
+        }
+        if( options.getVmStates() != null ) {
+            StringBuilder states = new StringBuilder();
+            boolean pending = false;
+
+            for( VmState state : options.getVmStates() ) {
+                String status;
+
+                if( VmState.RUNNING.equals(state) ) {
+                    status = "POWERED_ON";
+                }
+                else if( VmState.STOPPED.equals(state) ) {
+                    status = "POWERED_OFF";
+                }
+                else if( VmState.SUSPENDED.equals(state) ) {
+                    status = "SUSPENDED";
+                }
+                else {
+                    // pending covers a whole family of vCloud states
+                    pending = true;
+                    break;
+                }
+                if( states.length() > 0 ) {
+                    states.append(",");
+                }
+                states.append("status==").append(status);
+            }
+            if( !pending && states.length() > 0 ) {
+                predicates.add("(" + states + ")");
+            }
+            else if( any ) {
+                return null;
+            }
+        }
+        if( predicates.isEmpty() ) {
+            return null;
+        }
+        StringBuilder filter = new StringBuilder();
+
+        for( String predicate : predicates ) {
+            if( filter.length() > 0 ) {
+                filter.append(any ? "," : ";");
+            }
+            filter.append(predicate);
+        }
+        return filter.toString();
+    }
+
+    @Override
+    public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachineStatus");
+        try {
+            vCloudMethod method = new vCloudMethod(getProvider());
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+            TreeSet<String> vdcIds = new TreeSet<String>();
+
+            for( DataCenter dc : method.listDataCenters() ) {
+                vdcIds.add(dc.getProviderDataCenterId());
+            }
+            if( method.isQuerySupported() ) {
+                List<vCloudMethod.QueryRecord> records = method.queryAll("vm", "isVAppTemplate==false", null);
+
+                if( records != null ) {
+                    for( vCloudMethod.QueryRecord record : records ) {
+                        String href = record.getHref();
+                        String vdc = record.get("vdc");
+                        String s = record.get("status");
+
+                        if( href != null && vdc != null && s != null && vdcIds.contains((getProvider()).toID(vdc)) ) {
+                            status.add(new ResourceStatus((getProvider()).toID(href), toState(s)));
+                        }
+                    }
+                    return status;
+                }
+            }
+            for( String vdcId : vdcIds ) {
+                String xml = method.get("vdc", vdcId);
+
+                if( xml == null || xml.equals("") ) {
+                    continue;
+                }
+                Document doc = method.parseXML(xml);
+                String docElementTagName = doc.getDocumentElement().getTagName();
+                String nsString = "";
+                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                NodeList resources = doc.getElementsByTagName(nsString + "ResourceEntity");
+
+                for( int i=0; i<resources.getLength(); i++ ) {
+                    Node resource = resources.item(i);
+                    Node type = (resource.hasAttributes() ? resource.getAttributes().getNamedItem("type") : null);
+
+                    if( type != null && type.getNodeValue().equalsIgnoreCase(method.getMediaTypeForVApp()) ) {
+                        Node href = resource.getAttributes().getNamedItem("href");
+
+                        if( href != null ) {
+                            loadVmStatusFor(method, (getProvider()).toID(href.getNodeValue().trim()), status);
+                        }
+                    }
+                }
+            }
+            return status;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Reads just the status attribute of each VM in a vApp, without building the virtual machines.
+     */
+    private void loadVmStatusFor(@Nonnull vCloudMethod method, @Nonnull String vappId, @Nonnull List<ResourceStatus> status) throws InternalException, CloudException {
+        String xml = method.get("vApp", vappId);
+
+        if( xml == null || xml.equals("") ) {
+            return;
+        }
+        Document doc = method.parseXML(xml);
+        String docElementTagName = doc.getDocumentElement().getTagName();
+        String nsString = "";
+        if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+        NodeList vms = doc.getElementsByTagName(nsString + "Vm");
+
+        for( int i=0; i<vms.getLength(); i++ ) {
+            Node vm = vms.item(i);
+
+            if( vm.hasAttributes() ) {
+                Node href = vm.getAttributes().getNamedItem("href");
+                Node s = vm.getAttributes().getNamedItem("status");
+
+                if( href != null && s != null ) {
+                    status.add(new ResourceStatus((getProvider()).toID(href.getNodeValue().trim()), toState(s.getNodeValue().trim())));
+                }
+            }
+        }
+    }
+
+    @Override
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions options) throws InternalException, CloudException {
+        return listVirtualMachines(options, ProjectionOptions.getInstance());
+    }
+
+    /**
+     * Lists the virtual machines in this region matching the filter, populating only the requested facets.
+     * {@link Facet#ADDRESSES} covers the IP addresses and VLAN of each VM, {@link Facet#HARDWARE} its product and
+     * {@link Facet#METADATA} its tags, creation time and launch image. The filter is applied to the projected virtual
+     * machines, so the projection must include whatever facets the filter inspects.
+     * @param options the filter the virtual machines must match, if any
+     * @param projection the facets to populate
+     * @return the matching virtual machines
+     * @throws InternalException an error occurred within Dasein Cloud
+     * @throws CloudException an error occurred processing the request in vCloud
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(final @Nullable VMFilterOptions options, final @Nonnull ProjectionOptions projection) throws InternalException, CloudException {
+        if( options == null || !options.hasCriteria() ) {
+            return loadVirtualMachines(projection);
+        }
+        vCloudMethod method = new vCloudMethod(getProvider());
+        String f = null;
+
+        if( vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+            f = toQueryFilter(options);
+        }
+        if( f == null ) {
+            if( projection.isComplete() ) {
+                return super.listVirtualMachines(options);
+            }
+            ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
+
+            for( VirtualMachine vm : loadVirtualMachines(projection) ) {
+                if( options.matches(vm) ) {
+                    matches.add(vm);
+                }
+            }
+            return matches;
+        }
+        final String filter = f;
+
+        getProvider().hold();
+        PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
+            @Override
+            public void populate(@Nonnull Jiterator<VirtualMachine> iterator) throws Exception {
+                try {
+                    APITrace.begin(getProvider(), "VM.listVirtualMachines");
+                    try {
+                        Iterable<VLAN> vlans = Collections.emptyList();
+
+                        if( projection.includes(Facet.ADDRESSES) ) {
+                            vlans = (getProvider()).getNetworkServices().getVlanSupport().listVlans();
+                        }
+                        vCloudMethod method = new vCloudMethod(getProvider());
+
+                        if( !loadVmsFromQuery(method, filter, options, projection, iterator, vlans) ) {
+                            for( VirtualMachine vm : loadVirtualMachines(projection) ) {
+                                if( options.matches(vm) ) {
+                                    iterator.push(vm);
                                 }
                             }
-                            else {
-                                // No architecture specified, flip the flag - all architectures allowed
-                                supported = true;
-                            }
+                        }
+                    }
+                    finally {
+                        APITrace.end();
+                    }
+                }
+                finally {
+                    getProvider().release();
+                }
+            }
+        });
+        populator.populate();
+        return populator.getResult();
+    }
+
+    private void loadVmsFor(@Nonnull String vdcId, @Nonnull String id, @Nonnull ProjectionOptions projection, @Nonnull Collection<VirtualMachine> vms, @Nonnull Iterable<VLAN> vlans) throws InternalException, CloudException {
+        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+        boolean defer = getProvider().isMetaDataDeferred();
+
+        String xml = method.get("vApp", id);
+
+        if( xml == null || xml.equals("") ) {
+            return;
+        }
+        Document doc = method.parseXML(xml);
+        String docElementTagName = doc.getDocumentElement().getTagName();
+        String nsString = "";
+        if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+        NodeList vapps = doc.getElementsByTagName(nsString + "VApp");
+
+        if( vapps.getLength() < 1 ) {
+            return;
+        }
+        NodeList attributes = vapps.item(0).getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+            if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
+            else nsString = "";
+
+            if( attribute.getNodeName().equals(nsString + "Children") && attribute.hasChildNodes() ) {
+                NodeList children = attribute.getChildNodes();
+
+                for( int j=0; j<children.getLength(); j++ ) {
+                    Node vmNode = children.item(j);
+
+                    if( vmNode.getNodeName().equalsIgnoreCase(nsString + "Vm") && vmNode.hasAttributes() ) {
+                        VirtualMachine vm = toVirtualMachine(vdcId, id, vmNode, projection, vlans, defer);
+
+                        if( vm != null ) {
+                            vms.add(vm);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The power operations that can be applied to many VMs at once, with the link relation that performs each one
+     * and, for undeploying, the power action to request.
+     */
+    static private enum PowerAction {
+        START("power:powerOn", null),
+        REBOOT("power:reboot", null),
+        SUSPEND("power:suspend", null),
+        SHUTDOWN("undeploy", "shutdown"),
+        UNDEPLOY("undeploy", null);
+
+        final String rel;
+        final String undeployPowerAction;
+
+        PowerAction(@Nonnull String rel, @Nullable String undeployPowerAction) {
+            this.rel = rel;
+            this.undeployPowerAction = undeployPowerAction;
+        }
+    }
+
+    /**
+     * Work applied to the targeted VMs of one vApp as part of a bulk operation. Failures are reported in the results
+     * rather than thrown.
+     */
+    static private interface VAppOperation {
+        /**
+         * @param vappId the vApp
+         * @param vmIds the targeted VMs, or <code>null</code> if the vApp itself was targeted
+         * @return one result per targeted ID
+         */
+        @Nonnull List<PowerOperationResult> apply(@Nonnull String vappId, @Nullable Set<String> vmIds);
+    }
+
+    /**
+     * Starts many VMs, or vApps, at once. See {@link #stopMany(boolean, String...)} for how the work is grouped.
+     * @param ids the VMs or vApps to start
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> startMany(@Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.startMany");
+        try {
+            return applyPowerAction(PowerAction.START, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Stops many VMs, or vApps, at once. The VMs are grouped by their parent vApp, which costs no requests for VMs
+     * that were recently looked up and at most one query per batch of VMs otherwise. A vApp all of whose VMs are
+     * targeted is stopped with a single vApp-level action; otherwise each targeted VM in it is stopped in turn through
+     * the links in the one vApp document, as vCloud locks the vApp while one of its VMs changes state. vApps are
+     * handled concurrently, bounded by {@link vCloud#getListParallelism()}, and the call returns once every task has
+     * completed.
+     * @param force true to power the VMs off, false to shut down their guests
+     * @param ids the VMs or vApps to stop
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> stopMany(boolean force, @Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.stopMany");
+        try {
+            return applyPowerAction(force ? PowerAction.UNDEPLOY : PowerAction.SHUTDOWN, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Reboots many VMs, or vApps, at once. See {@link #stopMany(boolean, String...)} for how the work is grouped.
+     * @param ids the VMs or vApps to reboot
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> rebootMany(@Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.rebootMany");
+        try {
+            return applyPowerAction(PowerAction.REBOOT, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Suspends many VMs, or vApps, at once. See {@link #stopMany(boolean, String...)} for how the work is grouped.
+     * @param ids the VMs or vApps to suspend
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> suspendMany(@Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.suspendMany");
+        try {
+            return applyPowerAction(PowerAction.SUSPEND, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                            if( product.has("excludesRegions") ) {
-                                JSONArray regions = product.getJSONArray("excludesRegions");
+    /**
+     * Undeploys many VMs, or vApps, at once with the default power action. See {@link #stopMany(boolean, String...)}
+     * for how the work is grouped.
+     * @param ids the VMs or vApps to undeploy
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> undeployMany(@Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.undeployMany");
+        try {
+            return applyPowerAction(PowerAction.UNDEPLOY, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                                for( int j=0; j<regions.length(); j++ ) {
-                                    String r = regions.getString(j);
+    private @Nonnull Map<String,PowerOperationResult> applyPowerAction(@Nonnull final PowerAction action, @Nonnull String ... ids) throws CloudException, InternalException {
+        return applyPerVApp("Power Operation", new VAppOperation() {
+            public @Nonnull List<PowerOperationResult> apply(@Nonnull String vappId, @Nullable Set<String> vmIds) {
+                return applyPowerAction(action, vappId, vmIds);
+            }
+        }, ids);
+    }
 
-                                    if( r.equals(getContext().getRegionId()) ) {
-                                        supported = false;
-                                        break;
-                                    }
-                                }
-                            }
-                            if( !supported ) {
-                                continue;
-                            }
-                            VirtualMachineProduct prd = toProduct(product);
+    /**
+     * Groups the IDs by vApp and applies the operation to each group, running the groups concurrently.
+     * @param name the name of the threads running the groups
+     * @param operation the work to do in each vApp
+     * @param ids the VMs or vApps to act on
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nonnull Map<String,PowerOperationResult> applyPerVApp(@Nonnull String name, @Nonnull final VAppOperation operation, @Nonnull String ... ids) throws CloudException, InternalException {
+        HashMap<String,PowerOperationResult> results = new HashMap<String, PowerOperationResult>();
+        // vApp ID -> the VMs targeted in it, or null if the vApp itself was named
+        final Map<String,Set<String>> groups = groupByVApp(ids, results);
+        ParallelTasks<List<PowerOperationResult>> tasks = new ParallelTasks<List<PowerOperationResult>>(name, getProvider().getListParallelism());
 
-                            if( prd != null ) {
-                                if( options != null) {
-                                    // Filter supplied, add matches only.
-                                    if( options.matches(prd) ) {
-                                        list.add(prd);
-                                    }
-                                }
-                                else {
-                                    // No filter supplied, add all survived.
-                                    list.add(prd);
-                                }
-                            }
-                        }
-                    }
-                    else {
-                        logger.warn("No standard products resource exists for " + resource);
+        try {
+            ArrayList<Future<List<PowerOperationResult>>> done = new ArrayList<Future<List<PowerOperationResult>>>();
+
+            for( final String vappId : groups.keySet() ) {
+                done.addAll(tasks.submit(new Callable<List<PowerOperationResult>>() {
+                    public List<PowerOperationResult> call() throws Exception {
+                        return operation.apply(vappId, groups.get(vappId));
                     }
+                }));
+            }
+            Future<List<PowerOperationResult>> f;
 
-                    products = list;
-                    cache.put(getContext(), products);
-                }
-                catch( IOException e ) {
-                    throw new InternalException(e);
+            while( (f = tasks.take()) != null ) {
+                done.add(f);
+            }
+            for( Future<List<PowerOperationResult>> d : done ) {
+                try {
+                    for( PowerOperationResult result : d.get() ) {
+                        results.put(result.getId(), result);
+                    }
                 }
-                catch( JSONException e ) {
-                    throw new InternalException(e);
+                catch( ExecutionException e ) {
+                    // operations report their own failures per VM
+                    logger.error("Unexpected failure in " + name + ": " + e.getCause().getMessage());
                 }
             }
-            return products;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
         }
         finally {
-            APITrace.end();
+            tasks.shutdown();
         }
-    }
-
-    @Override
-    public Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
-        Cache<Architecture> cache = Cache.getInstance(getProvider(), "architectures", Architecture.class, CacheLevel.CLOUD);
-        Iterable<Architecture> list = cache.get(getContext());
+        LinkedHashMap<String,PowerOperationResult> ordered = new LinkedHashMap<String, PowerOperationResult>();
 
-        if( list == null) {
-            ArrayList<Architecture> a = new ArrayList<Architecture>();
+        for( String id : ids ) {
+            PowerOperationResult result = results.get(id);
 
-            a.add(Architecture.I32);
-            a.add(Architecture.I64);
-            list = a;
-            cache.put(getContext(), Collections.unmodifiableList(a));
+            if( result == null ) {
+                result = new PowerOperationResult(id, null, false, new InternalException("No result for " + id));
+            }
+            ordered.put(id, result);
         }
-        return list;
+        return ordered;
     }
 
-    @Override
-    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        getProvider().hold();
-        PopulatorThread<VirtualMachine> populator = new PopulatorThread<VirtualMachine>(new JiteratorPopulator<VirtualMachine>() {
-            @Override
-            public void populate(@Nonnull Jiterator<VirtualMachine> iterator) throws Exception {
-                try {
-                    APITrace.begin(getProvider(), "VM.listVirtualMachines");
-                    try {
-                        Iterable<VLAN> vlans = ((vCloud)getProvider()).getNetworkServices().getVlanSupport().listVlans();
-                        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+    private @Nonnull Map<String,Set<String>> groupByVApp(@Nonnull String[] ids, @Nonnull Map<String,PowerOperationResult> results) throws CloudException, InternalException {
+        LinkedHashMap<String,Set<String>> groups = new LinkedHashMap<String, Set<String>>();
+        ArrayList<String> unknown = new ArrayList<String>();
 
-                        for( DataCenter dc : method.listDataCenters() ) {
-                            String xml = method.get("vdc", dc.getProviderDataCenterId());
-
-                            if( xml != null && !xml.equals("") ) {
-                                Document doc = method.parseXML(xml);
-                                String docElementTagName = doc.getDocumentElement().getTagName();
-                                String nsString = "";
-                                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                                NodeList vdcs = doc.getElementsByTagName(nsString + "Vdc");
+        for( String id : ids ) {
+            if( id.startsWith("vapp-") ) {
+                groups.put(id, null);
+                continue;
+            }
+            VirtualMachine vm = VirtualMachineCache.get(getProvider(), id, null);
+            String vappId = (vm == null ? null : (String)vm.getTag(PARENT_VAPP_ID));
 
-                                if( vdcs.getLength() > 0 ) {
-                                    NodeList attributes = vdcs.item(0).getChildNodes();
+            if( vappId == null ) {
+                unknown.add(id);
+            }
+            else {
+                addToGroup(groups, vappId, id);
+            }
+        }
+        vCloudMethod method = new vCloudMethod(getProvider());
 
-                                    for( int i=0; i<attributes.getLength(); i++ ) {
-                                        Node attribute = attributes.item(i);
-                                        if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
-                                        else nsString = "";
+        if( !unknown.isEmpty() && method.isQuerySupported() ) {
+            for( int i=0; i<unknown.size(); i += 25 ) {
+                List<String> batch = unknown.subList(i, Math.min(unknown.size(), i + 25));
+                StringBuilder filter = new StringBuilder();
 
-                                        if( attribute.getNodeName().equalsIgnoreCase(nsString + "ResourceEntities") && attribute.hasChildNodes() ) {
-                                            NodeList resources = attribute.getChildNodes();
+                for( String id : batch ) {
+                    String uuid = id.substring(id.lastIndexOf('/') + 1);
 
-                                            for( int j=0; j<resources.getLength(); j++ ) {
-                                                Node resource = resources.item(j);
+                    if( uuid.startsWith("vm-") ) {
+                        uuid = uuid.substring(3);
+                    }
+                    filter.append(filter.length() == 0 ? "(" : ",").append("id==").append(uuid);
+                }
+                filter.append(")");
+                try {
+                    List<vCloudMethod.QueryRecord> records = method.queryAll("vm", filter.toString(), "container");
 
-                                                if( resource.getNodeName().equalsIgnoreCase(nsString + "ResourceEntity") && resource.hasAttributes() ) {
-                                                    Node type = resource.getAttributes().getNamedItem("type");
+                    if( records != null ) {
+                        for( vCloudMethod.QueryRecord record : records ) {
+                            String href = record.getHref();
+                            String container = record.get("container");
 
-                                                    if( type != null && type.getNodeValue().equalsIgnoreCase(method.getMediaTypeForVApp()) ) {
-                                                        Node href = resource.getAttributes().getNamedItem("href");
+                            if( href != null && container != null ) {
+                                String vmId = getProvider().toID(href);
 
-                                                        loadVmsFor(dc.getProviderDataCenterId(), ((vCloud)getProvider()).toID(href.getNodeValue().trim()), iterator, vlans);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
+                                if( batch.contains(vmId) ) {
+                                    addToGroup(groups, getProvider().toID(container), vmId);
                                 }
                             }
                         }
                     }
-                    finally {
-                        APITrace.end();
-                    }
                 }
-                finally {
-                    getProvider().release();
+                catch( CloudException e ) {
+                    logger.warn("Unable to query the vApps of " + batch.size() + " VMs, looking them up one by one: " + e.getMessage());
                 }
             }
-        });
-        populator.populate();
-        return populator.getResult();
+        }
+        for( String id : unknown ) {
+            if( isGrouped(groups, id) ) {
+                continue;
+            }
+            try {
+                VirtualMachine vm = getVirtualMachine(id);
+                String vappId = (vm == null ? null : (String)vm.getTag(PARENT_VAPP_ID));
+
+                if( vappId == null ) {
+                    results.put(id, new PowerOperationResult(id, null, false, new CloudException("No such virtual machine: " + id)));
+                }
+                else {
+                    addToGroup(groups, vappId, id);
+                }
+            }
+            catch( Throwable t ) {
+                results.put(id, new PowerOperationResult(id, null, false, t));
+            }
+        }
+        return groups;
     }
 
-    private void loadVmsFor(@Nonnull String vdcId, @Nonnull String id, @Nonnull Jiterator<VirtualMachine> vms, @Nonnull Iterable<VLAN> vlans) throws InternalException, CloudException {
-        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+    private void addToGroup(@Nonnull Map<String,Set<String>> groups, @Nonnull String vappId, @Nonnull String vmId) {
+        if( groups.containsKey(vappId) && groups.get(vappId) == null ) {
+            // the whole vApp is targeted already
+            return;
+        }
+        Set<String> vms = groups.get(vappId);
 
-        String xml = method.get("vApp", id);
+        if( vms == null ) {
+            vms = new LinkedHashSet<String>();
+            groups.put(vappId, vms);
+        }
+        vms.add(vmId);
+    }
 
-        if( xml == null || xml.equals("") ) {
-            return;
+    private boolean isGrouped(@Nonnull Map<String,Set<String>> groups, @Nonnull String vmId) {
+        for( Set<String> vms : groups.values() ) {
+            if( vms != null && vms.contains(vmId) ) {
+                return true;
+            }
         }
-        Document doc = method.parseXML(xml);
-        String docElementTagName = doc.getDocumentElement().getTagName();
-        String nsString = "";
-        if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-        NodeList vapps = doc.getElementsByTagName(nsString + "VApp");
+        return false;
+    }
 
-        if( vapps.getLength() < 1 ) {
-            return;
+    /**
+     * Applies a power action to VMs of one vApp, using the links in a single read of the vApp. Failures are reported
+     * in the results rather than thrown.
+     * @param action the action to apply
+     * @param vappId the vApp
+     * @param vmIds the targeted VMs, or <code>null</code> if the vApp itself was targeted
+     * @return one result per targeted ID
+     */
+    private @Nonnull List<PowerOperationResult> applyPowerAction(@Nonnull PowerAction action, @Nonnull String vappId, @Nullable Set<String> vmIds) {
+        ArrayList<PowerOperationResult> results = new ArrayList<PowerOperationResult>();
+        Collection<String> targets = (vmIds == null ? Collections.singletonList(vappId) : vmIds);
+
+        try {
+            vCloudMethod method = new vCloudMethod(getProvider());
+            String xml = method.get("vApp", vappId);
+
+            if( xml == null || xml.equals("") ) {
+                throw new CloudException("No such vApp: " + vappId);
+            }
+            Element vapp = method.parseXML(xml).getDocumentElement();
+            Map<String,Node> vms = getChildVms(vapp);
+            if( vmIds == null || (!vms.isEmpty() && vmIds.containsAll(vms.keySet())) ) {
+                method.waitFor(postPowerAction(method, vapp, action));
+                for( String id : targets ) {
+                    results.add(new PowerOperationResult(id, vappId, true, null));
+                }
+                return results;
+            }
+            // vCloud locks the vApp while one of its VMs changes state, so the VMs go one at a time
+            for( String vmId : vmIds ) {
+                Node vm = vms.get(vmId);
+
+                if( vm == null ) {
+                    results.add(new PowerOperationResult(vmId, vappId, false, new CloudException("No VM " + vmId + " in vApp " + vappId)));
+                    continue;
+                }
+                try {
+                    method.waitFor(postPowerAction(method, vm, action));
+                    results.add(new PowerOperationResult(vmId, vappId, false, null));
+                }
+                catch( Throwable t ) {
+                    results.add(new PowerOperationResult(vmId, vappId, false, t));
+                }
+            }
         }
-        NodeList attributes = vapps.item(0).getChildNodes();
+        catch( Throwable t ) {
+            results.clear();
+            for( String id : targets ) {
+                results.add(new PowerOperationResult(id, vappId, (vmIds == null), t));
+            }
+        }
+        finally {
+            VirtualMachineCache.invalidate(getProvider(), vappId);
+            for( String id : targets ) {
+                VirtualMachineCache.invalidate(getProvider(), id);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param vapp the root element of a vApp document
+     * @return the Vm elements of the vApp's children, keyed by VM ID
+     */
+    private @Nonnull Map<String,Node> getChildVms(@Nonnull Element vapp) {
+        LinkedHashMap<String,Node> vms = new LinkedHashMap<String, Node>();
+        NodeList attributes = vapp.getChildNodes();
 
         for( int i=0; i<attributes.getLength(); i++ ) {
             Node attribute = attributes.item(i);
-            if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
-            else nsString = "";
 
-            if( attribute.getNodeName().equals(nsString + "Children") && attribute.hasChildNodes() ) {
+            if( attribute.getNodeName().endsWith("Children") && attribute.hasChildNodes() ) {
                 NodeList children = attribute.getChildNodes();
 
                 for( int j=0; j<children.getLength(); j++ ) {
-                    Node vmNode = children.item(j);
+                    Node vm = children.item(j);
 
-                    if( vmNode.getNodeName().equalsIgnoreCase(nsString + "Vm") && vmNode.hasAttributes() ) {
-                        VirtualMachine vm = toVirtualMachine(vdcId, id, vmNode, vlans);
+                    if( vm.getNodeName().endsWith("Vm") && vm.hasAttributes() ) {
+                        Node href = vm.getAttributes().getNamedItem("href");
 
-                        if( vm != null ) {
-                            vms.push(vm);
+                        if( href != null ) {
+                            vms.put(getProvider().toID(href.getNodeValue().trim()), vm);
                         }
                     }
                 }
             }
         }
+        return vms;
+    }
+
+    /**
+     * @param method the method used to access vCloud
+     * @param resource the vApp or VM element whose links offer the action
+     * @param action the action to post
+     * @return the task of the action, or <code>null</code> if the resource offers no such action in its current state
+     * @throws CloudException an error occurred in vCloud posting the action
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    private @Nullable String postPowerAction(@Nonnull vCloudMethod method, @Nonnull Node resource, @Nonnull PowerAction action) throws CloudException, InternalException {
+        NodeList links = resource.getChildNodes();
+
+        for( int i=0; i<links.getLength(); i++ ) {
+            Node link = links.item(i);
+
+            if( link.getNodeName().endsWith("Link") && link.hasAttributes() ) {
+                Node rel = link.getAttributes().getNamedItem("rel");
+                Node href = link.getAttributes().getNamedItem("href");
+
+                if( rel != null && href != null && rel.getNodeValue().trim().equalsIgnoreCase(action.rel) ) {
+                    String endpoint = href.getNodeValue().trim();
+
+                    if( !action.rel.equals("undeploy") ) {
+                        return method.post(method.getAction(endpoint), endpoint, null, null);
+                    }
+                    StringBuilder payload = new StringBuilder();
+
+                    if( action.undeployPowerAction == null ) {
+                        payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"/>");
+                    }
+                    else {
+                        payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"><UndeployPowerAction>");
+                        payload.append(action.undeployPowerAction);
+                        payload.append("</UndeployPowerAction></UndeployVAppParams>");
+                    }
+                    return method.post(method.getAction(endpoint), endpoint, method.getMediaTypeForActionUndeployVApp(), payload.toString());
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -1245,6 +2531,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             }
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -1256,6 +2543,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             startVapp(vmId, true);
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -1266,6 +2554,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             startVapp(vmId, true);
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -1323,6 +2612,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             stopVappOrVm(vmId, force);
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -1510,6 +2800,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             suspendVapp(vmId);
         }
         finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
             APITrace.end();
         }
     }
@@ -1565,127 +2856,389 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     public void terminate(@Nonnull String vmId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.terminate");
         try {
-            VirtualMachine vm = getVirtualMachine(vmId);
+            HashMap<String,PowerOperationResult> results = new HashMap<String, PowerOperationResult>();
+            Map<String,Set<String>> groups = groupByVApp(new String[] { vmId }, results);
+            PowerOperationResult result = results.get(vmId);
 
-            if( vm == null ) {
+            for( Map.Entry<String,Set<String>> group : groups.entrySet() ) {
+                result = terminateVApp(group.getKey(), group.getValue()).get(0);
+            }
+            if( result == null ) {
                 throw new CloudException("No such virtual machine: " + vmId);
             }
-            String vappId = (String)vm.getTag(PARENT_VAPP_ID);
-            Jiterator<VirtualMachine> vms = new Jiterator<VirtualMachine>();
-            boolean contains = false;
-            int count = 0;
+            Throwable error = result.getError();
 
-            loadVmsFor(vm.getProviderDataCenterId(), vappId, vms, ((vCloud)getProvider()).getNetworkServices().getVlanSupport().listVlans());
+            if( error instanceof CloudException ) {
+                throw (CloudException)error;
+            }
+            else if( error instanceof InternalException ) {
+                throw (InternalException)error;
+            }
+            else if( error instanceof RuntimeException ) {
+                throw (RuntimeException)error;
+            }
+            else if( error != null ) {
+                throw new CloudException(error);
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-            for( VirtualMachine v : vms ) {
-                count++;
-                if( v.getProviderVirtualMachineId().equals(vmId) ) {
-                    contains = true;
-                    break;
+    /**
+     * Terminates many VMs, or vApps, at once. The VMs are grouped by their parent vApp as for
+     * {@link #stopMany(boolean, String...)}, and the vApps are torn down concurrently. A vApp all of whose VMs are
+     * targeted is undeployed and deleted as a whole; otherwise each targeted VM in it is undeployed and then deleted
+     * in turn, as vCloud locks the vApp while one of its VMs is removed. Every delete is waited on, so a failed
+     * delete is reported in its result.
+     * @param ids the VMs or vApps to terminate
+     * @return the outcome for each ID, in the order given
+     * @throws CloudException an error occurred in vCloud identifying the vApps of the VMs
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Map<String,PowerOperationResult> terminateMany(@Nonnull String ... ids) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "VM.terminateMany");
+        try {
+            return applyPerVApp("Terminate", new VAppOperation() {
+                public @Nonnull List<PowerOperationResult> apply(@Nonnull String vappId, @Nullable Set<String> vmIds) {
+                    return terminateVApp(vappId, vmIds);
                 }
-            }
+            }, ids);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Terminates VMs of one vApp working only from a single read of the vApp document. A failure to undeploy is
+     * logged and the delete attempted regardless, as it always has been. Failures are reported in the results rather
+     * than thrown.
+     * @param vappId the vApp
+     * @param vmIds the targeted VMs, or <code>null</code> if the vApp itself was targeted
+     * @return one result per targeted ID
+     */
+    private @Nonnull List<PowerOperationResult> terminateVApp(@Nonnull String vappId, @Nullable Set<String> vmIds) {
+        ArrayList<PowerOperationResult> results = new ArrayList<PowerOperationResult>();
+        Collection<String> targets = (vmIds == null ? Collections.singletonList(vappId) : vmIds);
+
+        try {
             vCloudMethod method = new vCloudMethod(getProvider());
+            String xml = method.get("vApp", vappId);
 
-            if( count == 1 && contains ) {
-                try { undeploy(vappId); }
-                catch( Throwable t ) {
-                    logger.error(t.getMessage());
+            if( xml == null || xml.equals("") ) {
+                throw new CloudException("No such vApp: " + vappId);
+            }
+            Element vapp = method.parseXML(xml).getDocumentElement();
+            Map<String,Node> vms = getChildVms(vapp);
+
+            if( vmIds == null || (!vms.isEmpty() && vmIds.containsAll(vms.keySet())) ) {
+                undeployForTermination(method, vapp);
+                method.waitFor(method.delete("vApp", vappId));
+                for( String id : targets ) {
+                    results.add(new PowerOperationResult(id, vappId, true, null));
                 }
-                method.delete("vApp", vappId);
+                return results;
             }
-            else {
-                try { undeploy(vmId); }
+            // vCloud locks the vApp while one of its VMs is undeployed or removed, so the VMs go one at a time
+            for( String vmId : vmIds ) {
+                Node vm = vms.get(vmId);
+
+                if( vm == null ) {
+                    results.add(new PowerOperationResult(vmId, vappId, false, new CloudException("No VM " + vmId + " in vApp " + vappId)));
+                    continue;
+                }
+                try {
+                    undeployForTermination(method, vm);
+                    method.waitFor(method.delete("vApp", vmId));
+                    results.add(new PowerOperationResult(vmId, vappId, false, null));
+                }
                 catch( Throwable t ) {
-                    logger.error(t.getMessage());
+                    results.add(new PowerOperationResult(vmId, vappId, false, t));
                 }
-                method.delete("vApp", vmId);
+            }
+        }
+        catch( Throwable t ) {
+            results.clear();
+            for( String id : targets ) {
+                results.add(new PowerOperationResult(id, vappId, (vmIds == null), t));
             }
         }
         finally {
-            APITrace.end();
+            VirtualMachineCache.invalidate(getProvider(), vappId);
+            for( String id : targets ) {
+                VirtualMachineCache.invalidate(getProvider(), id);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Undeploys a vApp or VM ahead of deleting it. A failure to undeploy is logged and the delete attempted regardless,
+     * unless the calling thread was interrupted.
+     * @param method the method used to access vCloud
+     * @param resource the vApp or VM element whose links offer the action
+     * @throws CloudException the calling thread was interrupted while undeploying in vCloud
+     * @throws InternalException the calling thread was interrupted while waiting to retry
+     */
+    private void undeployForTermination(@Nonnull vCloudMethod method, @Nonnull Node resource) throws CloudException, InternalException {
+        try {
+            method.waitFor(postUndeploy(method, resource));
+        }
+        catch( CloudException e ) {
+            if( Thread.currentThread().isInterrupted() ) {
+                throw e;
+            }
+            logger.error(e.getMessage());
+        }
+        catch( InternalException e ) {
+            if( Thread.currentThread().isInterrupted() ) {
+                throw e;
+            }
+            logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Undeploys a vApp or VM for termination, retrying once if vCloud reports it busy.
+     * @param method the method used to access vCloud
+     * @param resource the vApp or VM element whose links offer the action
+     * @return the undeploy task, or <code>null</code> if the resource is not deployed
+     * @throws CloudException an error occurred in vCloud posting the action
+     * @throws InternalException an error occurred within Dasein Cloud, or the thread was interrupted before retrying
+     */
+    private @Nullable String postUndeploy(@Nonnull vCloudMethod method, @Nonnull Node resource) throws CloudException, InternalException {
+        try {
+            return postPowerAction(method, resource, PowerAction.UNDEPLOY);
+        }
+        catch( vCloudException e ) {
+            if( e.getProviderCode() == null || !e.getProviderCode().contains("BUSY_ENTITY") ) {
+                throw e;
+            }
+            try { Thread.sleep(15000L); }
+            catch( InterruptedException interrupted ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(interrupted);
+            }
+            return postPowerAction(method, resource, PowerAction.UNDEPLOY);
+        }
+    }
+
+    private @Nonnull VmState toState(@Nonnull String status) throws CloudException, InternalException {
+        try {
+            int s = Integer.parseInt(status);
+
+            switch( s ) {
+                case 0: case 1: case 5: case 6: case 7: case 9: return VmState.PENDING;
+                case 3: return VmState.SUSPENDED;
+                case 4: return VmState.RUNNING;
+                case 8: return VmState.STOPPED;
+            }
+            logger.warn("DEBUG: Unknown vCloud status string for " + getContext().getAccountNumber() + ": " + status);
+            return VmState.PENDING;
+        }
+        catch( NumberFormatException e ) {
+            // query records report the status by name
+            if( status.equalsIgnoreCase("POWERED_ON") ) {
+                return VmState.RUNNING;
+            }
+            else if( status.equalsIgnoreCase("POWERED_OFF") ) {
+                return VmState.STOPPED;
+            }
+            else if( status.equalsIgnoreCase("SUSPENDED") ) {
+                return VmState.SUSPENDED;
+            }
+            else if( status.equalsIgnoreCase("UNRESOLVED") || status.equalsIgnoreCase("RESOLVED") || status.equalsIgnoreCase("UNKNOWN") || status.equalsIgnoreCase("WAITING_FOR_INPUT") || status.equalsIgnoreCase("MIXED") || status.equalsIgnoreCase("INCONSISTENT_STATE") ) {
+                return VmState.PENDING;
+            }
+            logger.error("DEBUG: Invalid status from vCloud for " + getContext().getAccountNumber() + ": " + status);
+            return VmState.PENDING;
+        }
+    }
+
+    private @Nonnull String toProductId(int cpu, int memory) throws CloudException, InternalException {
+        VirtualMachineProduct prd = getProductCatalog().findProduct(cpu, memory, Architecture.I64, getContext().getRegionId());
+
+        if( prd != null ) {
+            return prd.getProviderProductId();
+        }
+        return "custom:" + cpu + ":" + memory;
+    }
+
+    /**
+     * The networks against which the NICs of a single VM are matched. The networks are listed without their IP
+     * configuration, and only once the first NIC actually needs resolving, so looking up a VM without NICs, or
+     * while the network cache is warm, costs no network requests.
+     */
+    private class NetworkIndex implements Iterable<VLAN> {
+        private List<VLAN> vlans;
+
+        @Override
+        public synchronized @Nonnull Iterator<VLAN> iterator() {
+            if( vlans == null ) {
+                vlans = new ArrayList<VLAN>();
+                try {
+                    for( VLAN vlan : getProvider().getNetworkServices().getVlanSupport().listVlans(ProjectionOptions.getInstance().without(Facet.ADDRESSES)) ) {
+                        vlans.add(vlan);
+                    }
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to list networks for matching VM NICs: " + t.getMessage());
+                }
+            }
+            return vlans.iterator();
         }
     }
 
-    private @Nullable VirtualMachineProduct toProduct(@Nonnull JSONObject json) throws InternalException {
-        VirtualMachineProduct prd = new VirtualMachineProduct();
+    private @Nullable String toVlanId(@Nonnull String netNameOrId, @Nonnull Iterable<VLAN> vlans) {
+        boolean compat = (getProvider()).isCompat();
 
-        try {
-            if( json.has("id") ) {
-                prd.setProviderProductId(json.getString("id"));
-            }
-            else {
-                return null;
+        for( VLAN vlan : vlans ) {
+            if( !compat && vlan.getProviderVlanId().equals(netNameOrId) ) {
+                return vlan.getProviderVlanId();
             }
-            if( json.has("name") ) {
-                prd.setName(json.getString("name"));
+            else if( compat && vlan.getProviderVlanId().equals("/network/" + netNameOrId) ) {
+                return vlan.getProviderVlanId();
             }
-            else {
-                prd.setName(prd.getProviderProductId());
+            else if( vlan.getName().equals(netNameOrId) ) {
+                return vlan.getProviderVlanId();
             }
-            if( json.has("description") ) {
-                prd.setDescription(json.getString("description"));
+        }
+        return null;
+    }
+
+    private void setAddresses(@Nonnull VirtualMachine vm, @Nonnull Collection<String> addrs) {
+        if( addrs.size() == 1 ) {
+            RawAddress a = new RawAddress(addrs.iterator().next());
+
+            if( isPublicIpAddress(a) ) {
+                vm.setPublicAddresses(a);
             }
             else {
-                prd.setDescription(prd.getName());
+                vm.setPrivateAddresses(a);
             }
-            if( json.has("cpuCount") ) {
-                prd.setCpuCount(json.getInt("cpuCount"));
-            }
-            else {
-                prd.setCpuCount(1);
+        }
+        else if( addrs.size() > 1 ) {
+            ArrayList<RawAddress> pub = new ArrayList<RawAddress>();
+            ArrayList<RawAddress> priv = new ArrayList<RawAddress>();
+
+            for( String addr : addrs ) {
+                RawAddress r = new RawAddress(addr);
+
+                if( isPublicIpAddress(r) ) {
+                    pub.add(r);
+                }
+                else {
+                    priv.add(r);
+                }
             }
-            if( json.has("rootVolumeSizeInGb") ) {
-                prd.setRootVolumeSize(new Storage<Gigabyte>(json.getInt("rootVolumeSizeInGb"), Storage.GIGABYTE));
+            if( priv.size() > 0 ) {
+                vm.setPrivateAddresses(priv.toArray(new RawAddress[priv.size()]));
             }
-            else {
-                prd.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+            if( pub.size() > 0 ) {
+                vm.setPublicAddresses(pub.toArray(new RawAddress[pub.size()]));
             }
-            if( json.has("ramSizeInMb") ) {
-                prd.setRamSize(new Storage<Megabyte>(json.getInt("ramSizeInMb"), Storage.MEGABYTE));
+        }
+    }
+
+    private void setOperatingSystem(@Nonnull VirtualMachine vm, @Nonnull String desc) {
+        vm.setPlatform(Platform.guess(desc));
+
+        if( desc.contains("32") || (desc.contains("x86") && !desc.contains("64")) ) {
+            vm.setArchitecture(Architecture.I32);
+        }
+    }
+
+    /**
+     * Fills in the name, description and platform of a virtual machine from whatever is known about it.
+     */
+    private void setDefaults(@Nonnull VirtualMachine vm, @Nullable String vmName, @Nullable String computerName) {
+        if (vmName != null) {
+            vm.setName(vmName);
+        }
+        else if (computerName != null) {
+            vm.setName(computerName);
+        }
+        else {
+            vm.setName(vm.getProviderVirtualMachineId());
+        }
+        if( vm.getDescription() == null ) {
+            vm.setDescription(vm.getName());
+        }
+        Platform p = vm.getPlatform();
+
+        if( p == null || p.equals(Platform.UNKNOWN) || p.equals(Platform.UNIX) ) {
+            p = Platform.guess(vm.getName() + " " + vm.getDescription());
+            if( Platform.UNIX.equals(vm.getPlatform()) ) {
+                if( p.isUnix() ) {
+                    vm.setPlatform(p);
+                }
             }
             else {
-                prd.setRamSize(new Storage<Megabyte>(512, Storage.MEGABYTE));
+                vm.setPlatform(p);
             }
-            if( json.has("standardHourlyRates") ) {
-                JSONArray rates = json.getJSONArray("standardHourlyRates");
+        }
+    }
 
-                for( int i=0; i<rates.length(); i++ ) {
-                    JSONObject rate = rates.getJSONObject(i);
+    /**
+     * Loads the vCloud metadata of the VM as tags, recovering the launch image and creation time recorded by
+     * Dasein Cloud at launch.
+     */
+    void loadMetaData(@Nonnull VirtualMachine vm) {
+        try {
+            vCloudMethod method = new vCloudMethod(getProvider());
+            String xml = method.get("vApp", vm.getProviderVirtualMachineId() + "/metadata");
 
-                    if( rate.has("rate") ) {
-                        prd.setStandardHourlyRate((float)rate.getDouble("rate"));
-                    }
-                }
+            if( xml != null && !xml.equals("") ) {
+                method.parseMetaData(vm, xml);
+                setProvenance(vm, (String)vm.getTag("dsnCreated"), (String)vm.getTag("dsnImageId"), false);
             }
         }
-        catch( JSONException e ) {
-            throw new InternalException(e);
+        catch( Throwable warning ) {
+            if (logger.isDebugEnabled()) {
+                logger.warn("Failed to get and parse vm metadata.", warning);
+            }
+            else {
+                logger.warn("Failed to get and parse vm metadata.");
+            }
         }
-        return prd;
     }
 
-    private @Nonnull VmState toState(@Nonnull String status) throws CloudException, InternalException {
-        try {
-            int s = Integer.parseInt(status);
-
-            switch( s ) {
-                case 0: case 1: case 5: case 6: case 7: case 9: return VmState.PENDING;
-                case 3: return VmState.SUSPENDED;
-                case 4: return VmState.RUNNING;
-                case 8: return VmState.STOPPED;
+    /**
+     * Applies the creation time and launch image Dasein Cloud records in the VM metadata at launch.
+     * @param vm the virtual machine
+     * @param created the <code>dsnCreated</code> metadata value, if any
+     * @param imageId the <code>dsnImageId</code> metadata value, if any
+     * @param fresh true if the VM has only just been built, so the values apply without checking what it already
+     * holds; reading those back from a {@link DeferredMetaDataVM} would fetch the very metadata being applied
+     */
+    private void setProvenance(@Nonnull VirtualMachine vm, @Nullable String created, @Nullable String imageId, boolean fresh) {
+        if( created != null && (fresh || vm.getCreationTimestamp() < 1L) ) {
+            try { vm.setCreationTimestamp(Long.parseLong(created)); }
+            catch( Throwable parseWarning ) {
+                if (logger.isDebugEnabled()) {
+                    logger.warn("Failed to parse creation timestamp.", parseWarning);
+                }
+                else {
+                    logger.warn("Failed to parse creation timestamp.");
+                }
             }
-            logger.warn("DEBUG: Unknown vCloud status string for " + getContext().getAccountNumber() + ": " + status);
-            return VmState.PENDING;
         }
-        catch( NumberFormatException e ) {
-            logger.error("DEBUG: Invalid status from vCloud for " + getContext().getAccountNumber() + ": " + status);
-            return VmState.PENDING;
+        logger.debug("dsnImageId = " + imageId);
+        if( imageId != null && (fresh || "unknown".equals(vm.getProviderMachineImageId())) ) {
+            vm.setProviderMachineImageId(imageId);
+            logger.debug("Set provider machine image to " + imageId);
         }
     }
 
-    private @Nullable VirtualMachine toVirtualMachine(@Nonnull String vdcId, @Nonnull String parentVAppId, @Nonnull Node vmNode, @Nonnull Iterable<VLAN> vlans) throws CloudException, InternalException {
-        Node n = vmNode.getAttributes().getNamedItem("href");
-        VirtualMachine vm = new VirtualMachine();
+    /**
+     * @param vdcId the VDC in which the VM lives
+     * @param deferMetaData true if the metadata should only be fetched once something derived from it is read
+     * @return a virtual machine populated with the defaults common to all VMs
+     */
+    private @Nonnull VirtualMachine newVirtualMachine(@Nonnull String vdcId, boolean deferMetaData) throws CloudException, InternalException {
+        VirtualMachine vm = (deferMetaData ? new DeferredMetaDataVM(this) : new VirtualMachine());
 
         vm.setProviderMachineImageId("unknown");
         vm.setArchitecture(Architecture.I64);
@@ -1702,6 +3255,81 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
         vm.setRebootable(true);
         vm.setProviderRegionId(getContext().getRegionId());
         vm.setProviderDataCenterId(vdcId);
+        return vm;
+    }
+
+    /**
+     * Maps a <code>QueryResultVMRecord</code> onto a virtual machine. Records carry only the primary IP address
+     * and network, and nothing from the guest customization section. When the record was queried with
+     * {@link #toQueryFields(ProjectionOptions)}, it carries the launch provenance metadata and the rest of the
+     * metadata is deferred.
+     */
+    private @Nullable VirtualMachine toVirtualMachine(@Nonnull vCloudMethod.QueryRecord record, @Nonnull ProjectionOptions projection, @Nonnull Iterable<VLAN> vlans, boolean withMetaDataFields) throws CloudException, InternalException {
+        String href = record.getHref();
+        String vdc = record.get("vdc");
+        String container = record.get("container");
+
+        if( href == null || vdc == null || container == null ) {
+            return null;
+        }
+        boolean metaData = projection.includes(Facet.METADATA);
+        boolean defer = (withMetaDataFields || getProvider().isMetaDataDeferred());
+        VirtualMachine vm = newVirtualMachine((getProvider()).toID(vdc), metaData && defer);
+
+        vm.setProviderVirtualMachineId((getProvider()).toID(href));
+
+        String status = record.get("status");
+
+        if( status != null ) {
+            vm.setCurrentState(toState(status));
+        }
+        String guestOs = record.get("guestOs");
+
+        if( guestOs != null ) {
+            setOperatingSystem(vm, guestOs);
+        }
+        if( projection.includes(Facet.ADDRESSES) ) {
+            String addr = record.get("ipAddress");
+
+            if( addr != null && !addr.equals("") ) {
+                setAddresses(vm, Collections.singletonList(addr));
+            }
+            String network = record.get("networkName");
+
+            if( network != null && !network.equals("") ) {
+                vm.setProviderVlanId(toVlanId(network, vlans));
+            }
+        }
+        if( projection.includes(Facet.HARDWARE) ) {
+            try {
+                int cpu = Integer.parseInt(record.get("numberOfCpus"));
+                int memory = Integer.parseInt(record.get("memoryMB"));
+
+                vm.setProductId(toProductId(cpu, memory));
+            }
+            catch( NumberFormatException ignore ) {
+                // not reported
+            }
+        }
+        setDefaults(vm, record.get("name"), null);
+        if( metaData && record.metadata != null ) {
+            for( Map.Entry<String,String> entry : record.metadata.entrySet() ) {
+                vm.setTag(entry.getKey(), entry.getValue());
+            }
+            // the VM was just built with no creation time or image, so there is nothing to read back first
+            setProvenance(vm, record.metadata.get("dsnCreated"), record.metadata.get("dsnImageId"), true);
+        }
+        if( metaData && !defer ) {
+            loadMetaData(vm);
+        }
+        vm.setTag(PARENT_VAPP_ID, (getProvider()).toID(container));
+        return vm;
+    }
+
+    private @Nullable VirtualMachine toVirtualMachine(@Nonnull String vdcId, @Nonnull String parentVAppId, @Nonnull Node vmNode, @Nonnull ProjectionOptions projection, @Nonnull Iterable<VLAN> vlans, boolean deferMetaData) throws CloudException, InternalException {
+        Node n = vmNode.getAttributes().getNamedItem("href");
+        boolean metaData = projection.includes(Facet.METADATA);
+        VirtualMachine vm = newVirtualMachine(vdcId, metaData && deferMetaData);
 
         if( n != null ) {
             vm.setProviderVirtualMachineId((getProvider()).toID(n.getNodeValue().trim()));
@@ -1746,7 +3374,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
             else if( attribute.getNodeName().equalsIgnoreCase("DateCreated") && attribute.hasChildNodes() ) {
                 vm.setCreationTimestamp((getProvider()).parseTime(attribute.getFirstChild().getNodeValue().trim()));
             }
-            else if( attribute.getNodeName().equalsIgnoreCase("NetworkConnectionSection") && attribute.hasChildNodes() ) {
+            else if( attribute.getNodeName().equalsIgnoreCase("NetworkConnectionSection") && attribute.hasChildNodes() && projection.includes(Facet.ADDRESSES) ) {
                 NodeList elements = attribute.getChildNodes();
                 TreeSet<String> addrs = new TreeSet<String>();
 
@@ -1777,63 +3405,16 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
                             Node net = element.getAttributes().getNamedItem("network");
 
                             if( net != null ) {
-                                String netNameOrId = net.getNodeValue().trim();
-                                boolean compat = (getProvider()).isCompat();
-
-                                for( VLAN vlan : vlans ) {
-                                    boolean matches = false;
+                                String vlanId = toVlanId(net.getNodeValue().trim(), vlans);
 
-                                    if( !compat && vlan.getProviderVlanId().equals(netNameOrId) ) {
-                                        matches = true;
-                                    }
-                                    else if( compat && vlan.getProviderVlanId().equals("/network/" + netNameOrId) ) {
-                                        matches = true;
-                                    }
-                                    else if( vlan.getName().equals(netNameOrId) ) {
-                                        matches = true;
-                                    }
-                                    if( matches ) {
-                                        vm.setProviderVlanId(vlan.getProviderVlanId());
-                                        break;
-                                    }
+                                if( vlanId != null ) {
+                                    vm.setProviderVlanId(vlanId);
                                 }
                             }
                         }
                     }
                 }
-                if( addrs.size() > 0 ) {
-                    if( addrs.size() == 1 ) {
-                        RawAddress a = new RawAddress(addrs.iterator().next());
-
-                        if( isPublicIpAddress(a) ) {
-                            vm.setPublicAddresses(a);
-                        }
-                        else {
-                            vm.setPrivateAddresses(a);
-                        }
-                    }
-                    else {
-                        ArrayList<RawAddress> pub = new ArrayList<RawAddress>();
-                        ArrayList<RawAddress> priv = new ArrayList<RawAddress>();
-
-                        for( String addr : addrs ) {
-                            RawAddress r = new RawAddress(addr);
-
-                            if( isPublicIpAddress(r) ) {
-                                pub.add(r);
-                            }
-                            else {
-                                priv.add(r);
-                            }
-                        }
-                        if( priv.size() > 0 ) {
-                            vm.setPrivateAddresses(priv.toArray(new RawAddress[priv.size()]));
-                        }
-                        if( pub.size() > 0 ) {
-                            vm.setPublicAddresses(pub.toArray(new RawAddress[pub.size()]));
-                        }
-                    }
-                }
+                setAddresses(vm, addrs);
             }
             else if( attribute.getNodeName().equalsIgnoreCase("ovf:OperatingSystemSection") && attribute.hasChildNodes() ) {
                 NodeList os = attribute.getChildNodes();
@@ -1842,17 +3423,11 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
                     Node osdesc = os.item(j);
 
                     if( osdesc.getNodeName().equalsIgnoreCase("ovf:Description") && osdesc.hasChildNodes() ) {
-                        String desc = osdesc.getFirstChild().getNodeValue();
-
-                        vm.setPlatform(Platform.guess(desc));
-
-                        if( desc.contains("32") || (desc.contains("x86") && !desc.contains("64")) ) {
-                            vm.setArchitecture(Architecture.I32);
-                        }
+                        setOperatingSystem(vm, osdesc.getFirstChild().getNodeValue());
                     }
                 }
             }
-            else if( attribute.getNodeName().equalsIgnoreCase("ovf:VirtualHardwareSection") && attribute.hasChildNodes() ) {
+            else if( attribute.getNodeName().equalsIgnoreCase("ovf:VirtualHardwareSection") && attribute.hasChildNodes() && projection.includes(Facet.HARDWARE) ) {
                 NodeList hardware = attribute.getChildNodes();
                 int memory = 0, cpu = 0;
 
@@ -1898,88 +3473,15 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
                         }
                     }
                 }
-                VirtualMachineProduct product = null;
-
-                for( VirtualMachineProduct prd : listProducts(Architecture.I64) ) {
-                    if( prd.getCpuCount() == cpu && memory == prd.getRamSize().intValue() ) {
-                        product = prd;
-                        break;
-                    }
-                }
-                if( product == null ) {
-                    vm.setProductId("custom:" + cpu + ":" + memory);
-                }
-                else {
-                    vm.setProductId(product.getProviderProductId());
-                }
+                vm.setProductId(toProductId(cpu, memory));
             }
         }
         if( vm.getProviderVirtualMachineId() == null ) {
             return null;
         }
-        if (vmName != null) {
-            vm.setName(vmName);
-        }
-        else if (computerName != null) {
-            vm.setName(computerName);
-        }
-        else {
-            vm.setName(vm.getProviderVirtualMachineId());
-        }
-        if( vm.getDescription() == null ) {
-            vm.setDescription(vm.getName());
-        }
-        Platform p = vm.getPlatform();
-
-        if( p == null || p.equals(Platform.UNKNOWN) || p.equals(Platform.UNIX) ) {
-            p = Platform.guess(vm.getName() + " " + vm.getDescription());
-            if( Platform.UNIX.equals(vm.getPlatform()) ) {
-                if( p.isUnix() ) {
-                    vm.setPlatform(p);
-                }
-            }
-            else {
-                vm.setPlatform(p);
-            }
-        }
-        try {
-            vCloudMethod method = new vCloudMethod(getProvider());
-            String xml = method.get("vApp", vm.getProviderVirtualMachineId() + "/metadata");
-
-            if( xml != null && !xml.equals("") ) {
-                method.parseMetaData(vm, xml);
-
-                String t;
-
-                if( vm.getCreationTimestamp() < 1L ) {
-                    t = (String)vm.getTag("dsnCreated");
-                    if( t != null ) {
-                        try { vm.setCreationTimestamp(Long.parseLong(t)); }
-                        catch( Throwable parseWarning ) {
-                            if (logger.isDebugEnabled()) {
-                                logger.warn("Failed to parse creation timestamp.", parseWarning);
-                            }
-                            else {
-                                logger.warn("Failed to parse creation timestamp.");
-                            }
-                        }
-                    }
-                }
-                t = (String)vm.getTag("dsnImageId");
-                logger.debug("dsnImageId = " + t);
-                if( t != null && "unknown".equals(vm.getProviderMachineImageId()) ) {
-                    vm.setProviderMachineImageId(t);
-                    logger.debug("Set provider machine image to " + t);
-                }
-            }
-        }
-        catch( Throwable warning ) {
-            if (logger.isDebugEnabled()) {
-                logger.warn("Failed to get and parse vm metadata.", warning);
-            }
-            else {
-                logger.warn("Failed to get and parse vm metadata.");
-            }
+        setDefaults(vm, vmName, computerName);
+        if( metaData && !deferMetaData ) {
+            loadMetaData(vm);
         }
         vm.setTag(PARENT_VAPP_ID, parentVAppId);
         return vm;
@@ -2003,64 +3505,69 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
      * @throws InternalException
      */
     public void undeploy(@Nonnull String vmId, String powerAction) throws CloudException, InternalException {
-        vCloudMethod method = new vCloudMethod(getProvider());
-        String xml = method.get("vApp", vmId);
+        try {
+            vCloudMethod method = new vCloudMethod(getProvider());
+            String xml = method.get("vApp", vmId);
 
-        if( xml != null ) {
-            Document doc = method.parseXML(xml);
-            String docElementTagName = doc.getDocumentElement().getTagName();
-            String nsString = "";
-            if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-            NodeList nodes = doc.getElementsByTagName(nsString + "VApp");
+            if( xml != null ) {
+                Document doc = method.parseXML(xml);
+                String docElementTagName = doc.getDocumentElement().getTagName();
+                String nsString = "";
+                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                NodeList nodes = doc.getElementsByTagName(nsString + "VApp");
 
-            if( nodes.getLength() < 1 ) {
-                nodes = doc.getElementsByTagName(nsString + "Vm");
-            }
-            for( int i=0; i<nodes.getLength(); i++ ) {
-                NodeList links = nodes.item(i).getChildNodes();
+                if( nodes.getLength() < 1 ) {
+                    nodes = doc.getElementsByTagName(nsString + "Vm");
+                }
+                for( int i=0; i<nodes.getLength(); i++ ) {
+                    NodeList links = nodes.item(i).getChildNodes();
 
-                for( int j=0; j<links.getLength(); j++ ) {
-                    Node node = links.item(j);
-                    if(node.getNodeName().contains(":"))nsString = node.getNodeName().substring(0, node.getNodeName().indexOf(":") + 1);
-                    else nsString = "";
+                    for( int j=0; j<links.getLength(); j++ ) {
+                        Node node = links.item(j);
+                        if(node.getNodeName().contains(":"))nsString = node.getNodeName().substring(0, node.getNodeName().indexOf(":") + 1);
+                        else nsString = "";
 
-                    if( node.getNodeName().equalsIgnoreCase(nsString + "Link") && node.hasAttributes() ) {
-                        Node rel = node.getAttributes().getNamedItem("rel");
+                        if( node.getNodeName().equalsIgnoreCase(nsString + "Link") && node.hasAttributes() ) {
+                            Node rel = node.getAttributes().getNamedItem("rel");
 
-                        if( rel != null && rel.getNodeValue().trim().equalsIgnoreCase("undeploy") ) {
-                            Node href = node.getAttributes().getNamedItem("href");
+                            if( rel != null && rel.getNodeValue().trim().equalsIgnoreCase("undeploy") ) {
+                                Node href = node.getAttributes().getNamedItem("href");
 
-                            if( href != null ) {
-                                String endpoint = href.getNodeValue().trim();
-                                String action = method.getAction(endpoint);
-                                StringBuilder payload = new StringBuilder();
-
-                                if (powerAction == null) {
-                                    payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"/>");
-                                } else {
-                                    payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"><UndeployPowerAction>");
-                                    payload.append(powerAction);
-                                    payload.append("</UndeployPowerAction></UndeployVAppParams>");
-                                }
-                                try {
-                                    method.waitFor(method.post(action, endpoint, method.getMediaTypeForActionUndeployVApp(), payload.toString()));
-                                }
-                                catch( vCloudException e ) {
-                                    if( e.getProviderCode().contains("BUSY_ENTITY") ) {
-                                        try { Thread.sleep(15000L); }
-                                        catch( InterruptedException ignore ) { }
-                                        undeploy(vmId);
-                                        return;
+                                if( href != null ) {
+                                    String endpoint = href.getNodeValue().trim();
+                                    String action = method.getAction(endpoint);
+                                    StringBuilder payload = new StringBuilder();
+
+                                    if (powerAction == null) {
+                                        payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"/>");
+                                    } else {
+                                        payload.append("<UndeployVAppParams xmlns=\"http://www.vmware.com/vcloud/v1.5\"><UndeployPowerAction>");
+                                        payload.append(powerAction);
+                                        payload.append("</UndeployPowerAction></UndeployVAppParams>");
                                     }
-                                    throw e;
+                                    try {
+                                        method.waitFor(method.post(action, endpoint, method.getMediaTypeForActionUndeployVApp(), payload.toString()));
+                                    }
+                                    catch( vCloudException e ) {
+                                        if( e.getProviderCode().contains("BUSY_ENTITY") ) {
+                                            try { Thread.sleep(15000L); }
+                                            catch( InterruptedException ignore ) { }
+                                            undeploy(vmId);
+                                            return;
+                                        }
+                                        throw e;
+                                    }
+                                    break;
                                 }
-                                break;
                             }
                         }
                     }
                 }
             }
         }
+        finally {
+            VirtualMachineCache.invalidate(getProvider(), vmId);
+        }
     }
 
     private @Nonnull String validateHostName(@Nonnull String src) {
@@ -2108,6 +3615,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     		method.postMetaData("vApp", vmId, metadata);
     	}
     	finally {
+    		VirtualMachineCache.invalidate(getProvider(), vmId);
     		APITrace.end();
     	}
     }
@@ -2131,6 +3639,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     		method.putMetaData("vApp", vmId, metadata);
     	}
     	finally {
+    		VirtualMachineCache.invalidate(getProvider(), vmId);
     		APITrace.end();
     	}
     }
@@ -2154,6 +3663,7 @@ public class vAppSupport extends AbstractVMSupport<vCloud> {
     		method.delMetaData("vApp", vmId, metadata);
     	}
     	finally {
+    		VirtualMachineCache.invalidate(getProvider(), vmId);
     		APITrace.end();
     	}
     }
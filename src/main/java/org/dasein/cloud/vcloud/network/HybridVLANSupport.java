@@ -18,6 +18,7 @@
 
 package org.dasein.cloud.vcloud.network;
 
+import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
@@ -27,6 +28,8 @@ import org.dasein.cloud.network.*;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vcloud.ProjectionOptions;
+import org.dasein.cloud.vcloud.ProjectionOptions.Facet;
 import org.dasein.cloud.vcloud.vCloud;
 import org.dasein.cloud.vcloud.vCloudMethod;
 import org.dasein.util.uom.time.Minute;
@@ -47,6 +50,7 @@ import java.util.*;
  * @since 2013.04
  */
 public class HybridVLANSupport extends AbstractVLANSupport {
+    static private final Logger logger = vCloud.getLogger(HybridVLANSupport.class);
 
     private volatile transient HybridVLANCapabilities capabilities;
     private vCloud provider;
@@ -90,6 +94,26 @@ public class HybridVLANSupport extends AbstractVLANSupport {
         try {
             vCloudMethod method = new vCloudMethod((vCloud)getProvider());
 
+            if( vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+                String id = vlanId.substring(vlanId.lastIndexOf('/') + 1);
+
+                try {
+                    Iterable<vCloudMethod.QueryRecord> records = method.queryAll("orgVdcNetwork", "id==" + id, null);
+
+                    if( records != null ) {
+                        for( vCloudMethod.QueryRecord record : records ) {
+                            VLAN vlan = toVlan(method, record);
+
+                            if( vlan != null && vlan.getProviderVlanId().equals(vlanId) ) {
+                                return vlan;
+                            }
+                        }
+                    }
+                }
+                catch( CloudException e ) {
+                    logger.warn("Unable to query for network " + vlanId + ", looking it up directly: " + e.getMessage());
+                }
+            }
             for( DataCenter dc : method.listDataCenters() ) {
                 VLAN vlan = toVlan(dc.getProviderDataCenterId(), vlanId);
 
@@ -135,47 +159,114 @@ public class HybridVLANSupport extends AbstractVLANSupport {
     public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VLAN.listVlans");
         try {
-            Cache<VLAN> cache = Cache.getInstance(getProvider(), "networks", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(5, TimePeriod.MINUTE));
+            Cache<VLAN> cache = getNetworkCache();
             Iterable<VLAN> cached = cache.get(getContext());
 
             if( cached != null ) {
                 return cached;
             }
-            vCloudMethod method = new vCloudMethod((vCloud)getProvider());
-            ArrayList<VLAN> vlans = new ArrayList<VLAN>();
+            List<VLAN> vlans = loadVlans(true);
 
-            for( DataCenter dc : method.listDataCenters() ) {
-                String xml = method.get("vdc", dc.getProviderDataCenterId());
+            cache.put(getContext(), vlans);
+            return vlans;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the networks in this region, populating only the requested facets. Without {@link Facet#ADDRESSES}, the
+     * gateway, netmask, DNS and IP range of each network are not read, which spares a request per network on
+     * versions before 5.1. Complete listings are cached and serve any projection; partial ones are not cached.
+     * @param projection the facets to populate
+     * @return the networks
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nonnull Iterable<VLAN> listVlans(@Nonnull ProjectionOptions projection) throws CloudException, InternalException {
+        if( projection.includes(Facet.ADDRESSES) ) {
+            return listVlans();
+        }
+        APITrace.begin(getProvider(), "VLAN.listVlans");
+        try {
+            Iterable<VLAN> cached = getNetworkCache().get(getContext());
+
+            if( cached != null ) {
+                return cached;
+            }
+            return loadVlans(false);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                if( xml != null && !xml.equals("") ) {
-                    Document doc = method.parseXML(xml);
-                    String docElementTagName = doc.getDocumentElement().getTagName();
-                    String nsString = "";
-                    if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                    NodeList vdcs = doc.getElementsByTagName(nsString + "Vdc");
+    private @Nonnull Cache<VLAN> getNetworkCache() {
+        return Cache.getInstance(getProvider(), "networks", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(5, TimePeriod.MINUTE));
+    }
 
-                    if( vdcs.getLength() > 0 ) {
-                        NodeList attributes = vdcs.item(0).getChildNodes();
+    private @Nonnull List<VLAN> loadVlans(boolean withAddresses) throws CloudException, InternalException {
+        vCloudMethod method = new vCloudMethod((vCloud)getProvider());
+        ArrayList<VLAN> vlans = new ArrayList<VLAN>();
 
-                        for( int i=0; i<attributes.getLength(); i++ ) {
-                            Node attribute = attributes.item(i);
-                            if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
-                            else nsString = "";
+        if( vCloudMethod.matches(method.getAPIVersion(), "5.1", null) ) {
+            Iterable<vCloudMethod.QueryRecord> records = method.queryAll("orgVdcNetwork", null, withAddresses ? null : "name,vdc,linkType,isShared");
 
-                            if( attribute.getNodeName().equalsIgnoreCase(nsString + "AvailableNetworks") && attribute.hasChildNodes() ) {
-                                NodeList resources = attribute.getChildNodes();
+            if( records != null ) {
+                HashSet<String> dcIds = new HashSet<String>();
 
-                                for( int j=0; j<resources.getLength(); j++ ) {
-                                    Node resource = resources.item(j);
+                for( DataCenter dc : method.listDataCenters() ) {
+                    dcIds.add(dc.getProviderDataCenterId());
+                }
+                for( vCloudMethod.QueryRecord record : records ) {
+                    VLAN vlan = toVlan(method, record);
 
-                                    if( resource.getNodeName().equalsIgnoreCase(nsString + "Network") && resource.hasAttributes() ) {
-                                        Node href = resource.getAttributes().getNamedItem("href");
+                    if( vlan != null && dcIds.contains(vlan.getProviderDataCenterId()) ) {
+                        vlans.add(vlan);
+                    }
+                }
+                return vlans;
+            }
+        }
+        for( DataCenter dc : method.listDataCenters() ) {
+            String xml = method.get("vdc", dc.getProviderDataCenterId());
 
-                                        VLAN vlan = toVlan(dc.getProviderDataCenterId(), ((vCloud) getProvider()).toID(href.getNodeValue().trim()));
+            if( xml != null && !xml.equals("") ) {
+                Document doc = method.parseXML(xml);
+                String docElementTagName = doc.getDocumentElement().getTagName();
+                String nsString = "";
+                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
+                NodeList vdcs = doc.getElementsByTagName(nsString + "Vdc");
 
-                                        if( vlan != null ) {
-                                            vlans.add(vlan);
-                                        }
+                if( vdcs.getLength() > 0 ) {
+                    NodeList attributes = vdcs.item(0).getChildNodes();
+
+                    for( int i=0; i<attributes.getLength(); i++ ) {
+                        Node attribute = attributes.item(i);
+                        if(attribute.getNodeName().contains(":"))nsString = attribute.getNodeName().substring(0, attribute.getNodeName().indexOf(":") + 1);
+                        else nsString = "";
+
+                        if( attribute.getNodeName().equalsIgnoreCase(nsString + "AvailableNetworks") && attribute.hasChildNodes() ) {
+                            NodeList resources = attribute.getChildNodes();
+
+                            for( int j=0; j<resources.getLength(); j++ ) {
+                                Node resource = resources.item(j);
+
+                                if( resource.getNodeName().equalsIgnoreCase(nsString + "Network") && resource.hasAttributes() ) {
+                                    Node href = resource.getAttributes().getNamedItem("href");
+                                    VLAN vlan;
+
+                                    if( withAddresses ) {
+                                        vlan = toVlan(dc.getProviderDataCenterId(), ((vCloud) getProvider()).toID(href.getNodeValue().trim()));
+                                    }
+                                    else {
+                                        Node name = resource.getAttributes().getNamedItem("name");
+
+                                        vlan = toVlan(dc.getProviderDataCenterId(), href.getNodeValue().trim(), name == null ? null : name.getNodeValue().trim());
+                                    }
+                                    if( vlan != null ) {
+                                        vlans.add(vlan);
                                     }
                                 }
                             }
@@ -183,18 +274,126 @@ public class HybridVLANSupport extends AbstractVLANSupport {
                     }
                 }
             }
-            cache.put(getContext(), vlans);
-            return vlans;
-        }
-        finally {
-            APITrace.end();
         }
+        return vlans;
     }
 
     @Override
     public void removeInternetGatewayById(@Nonnull String s) throws CloudException, InternalException {
     }
 
+    /**
+     * Maps a <code>QueryResultOrgVdcNetworkRecord</code> onto a VLAN. Records do not carry the IP ranges of the
+     * network, so the <code>ipStart</code>/<code>ipEnd</code> tags are only available from {@link #toVlan(String, String)}.
+     */
+    private @Nullable VLAN toVlan(@Nonnull vCloudMethod method, @Nonnull vCloudMethod.QueryRecord record) throws InternalException, CloudException {
+        String href = record.getHref();
+        String vdc = record.get("vdc");
+
+        if( href == null || vdc == null ) {
+            return null;
+        }
+        VLAN vlan = new VLAN();
+        String id = ((vCloud)getProvider()).toID(href);
+
+        vlan.setProviderVlanId(id);
+        vlan.setProviderDataCenterId(((vCloud)getProvider()).toID(vdc));
+        vlan.setProviderRegionId(getContext().getRegionId());
+        vlan.setProviderOwnerId(getContext().getAccountNumber());
+        vlan.setSupportedTraffic(IPVersion.IPV4);
+        vlan.setCurrentState(VLANState.AVAILABLE);
+
+        String name = record.get("name");
+
+        if( name != null ) {
+            vlan.setName(name);
+            vlan.setDescription(name);
+        }
+        HashMap<String,String> tags = new HashMap<String, String>();
+
+        // records link to the admin view of the network, but launches need the user view
+        tags.put("networkHref", method.toURL("network", id));
+
+        ArrayList<String> dnsServers = new ArrayList<String>();
+
+        for( String key : new String[] { "dns1", "dns2" } ) {
+            String ns = record.get(key);
+
+            if( ns != null && !ns.equals("") ) {
+                dnsServers.add(ns);
+            }
+        }
+        vlan.setDnsServers(dnsServers.toArray(new String[dnsServers.size()]));
+
+        String domain = record.get("dnsSuffix");
+
+        if( domain != null && !domain.equals("") ) {
+            vlan.setDomainName(domain);
+        }
+        String linkType = record.get("linkType");
+
+        if( "0".equals(linkType) ) {
+            tags.put("fenceMode", "bridged");
+        }
+        else if( "1".equals(linkType) ) {
+            tags.put("fenceMode", "natRouted");
+        }
+        else if( "2".equals(linkType) ) {
+            tags.put("fenceMode", "isolated");
+        }
+        String gateway = record.get("defaultGateway");
+        String netmask = record.get("netmask");
+
+        if( gateway == null ) {
+            gateway = record.get("gateway");
+        }
+        if( gateway != null && !gateway.equals("") ) {
+            tags.put("gateway", gateway);
+        }
+        else {
+            gateway = null;
+        }
+        if( netmask != null && !netmask.equals("") ) {
+            tags.put("netmask", netmask);
+        }
+        else {
+            netmask = null;
+        }
+        if( netmask != null && gateway != null ) {
+            vlan.setCidr(netmask, gateway);
+        }
+        tags.put("shared", String.valueOf("true".equalsIgnoreCase(record.get("isShared"))));
+        if( vlan.getName() == null ) {
+            vlan.setName(vlan.getProviderVlanId());
+        }
+        if( vlan.getDescription() == null ) {
+            vlan.setDescription(vlan.getName());
+        }
+        vlan.setTags(tags);
+        return vlan;
+    }
+
+    /**
+     * Builds a VLAN from the network reference in a VDC document alone, without its IP configuration.
+     */
+    private @Nonnull VLAN toVlan(@Nonnull String vdcId, @Nonnull String href, @Nullable String name) throws InternalException, CloudException {
+        VLAN vlan = new VLAN();
+        HashMap<String,String> tags = new HashMap<String, String>();
+
+        vlan.setProviderVlanId(((vCloud)getProvider()).toID(href));
+        vlan.setProviderDataCenterId(vdcId);
+        vlan.setProviderRegionId(getContext().getRegionId());
+        vlan.setProviderOwnerId(getContext().getAccountNumber());
+        vlan.setSupportedTraffic(IPVersion.IPV4);
+        vlan.setCurrentState(VLANState.AVAILABLE);
+        vlan.setName(name == null || name.equals("") ? vlan.getProviderVlanId() : name);
+        vlan.setDescription(vlan.getName());
+        vlan.setDnsServers(new String[0]);
+        tags.put("networkHref", href);
+        vlan.setTags(tags);
+        return vlan;
+    }
+
     private @Nullable VLAN toVlan(@Nonnull String vdcId, @Nonnull String id) throws InternalException, CloudException {
         vCloudMethod method = new vCloudMethod((vCloud)getProvider());
 
@@ -32,7 +32,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Properties;
 import java.util.TimeZone;
 
@@ -169,6 +168,99 @@ public class vCloud extends AbstractCloud {
     }
 
 
+    /**
+     * Reads a tuning property from the custom properties of the context, or else from the named system property.
+     * @param name the name of the custom property
+     * @param systemName the name of the system property to fall back on
+     * @return the configured value, if any
+     */
+    private @Nullable String getTuningValue(@Nonnull String name, @Nonnull String systemName) {
+        ProviderContext ctx = getContext();
+        String value = null;
+
+        if( ctx != null ) {
+            Properties p = ctx.getCustomProperties();
+
+            if( p != null ) {
+                value = p.getProperty(name);
+            }
+        }
+        if( value == null ) {
+            value = System.getProperty(systemName);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a numeric tuning property from the custom properties of the context, or else from the named system
+     * property.
+     * @param name the name of the custom property
+     * @param systemName the name of the system property to fall back on
+     * @param defaultValue the value to use if neither is set to a positive integer
+     * @return the configured value
+     */
+    private int getTuningProperty(@Nonnull String name, @Nonnull String systemName, int defaultValue) {
+        String value = getTuningValue(name, systemName);
+
+        if( value != null ) {
+            try {
+                int n = Integer.parseInt(value.trim());
+
+                if( n > 0 ) {
+                    return n;
+                }
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the number of query service pages that may be in flight at once for a single listing
+     */
+    public @Nonnegative int getQueryConcurrency() {
+        return getTuningProperty("queryConcurrency", "vCloudQueryConcurrency", 4);
+    }
+
+    /**
+     * @return the number of vApps (or VMs) that may be loaded at once when a listing has to walk the org
+     */
+    public @Nonnegative int getListParallelism() {
+        return getTuningProperty("listParallelism", "vCloudListParallelism", 8);
+    }
+
+    /**
+     * @return the number of launched VMs that may be configured and powered on at once; further launches queue
+     */
+    public @Nonnegative int getLaunchConcurrency() {
+        return getTuningProperty("launchConcurrency", "vCloudLaunchConcurrency", 10);
+    }
+
+    /**
+     * @return how long the image, networks and data center resolved for a launch may be reused by other launches, in milliseconds
+     */
+    public @Nonnegative long getLaunchLookupMillis() {
+        return getTuningProperty("launchLookupSeconds", "vCloudLaunchLookupSeconds", 60) * 1000L;
+    }
+
+    /**
+     * @return how long a virtual machine fetched by ID may be served again without another request, in milliseconds
+     */
+    public @Nonnegative long getVmCacheMillis() {
+        return getTuningProperty("vmCacheSeconds", "vCloudVmCacheSeconds", 10) * 1000L;
+    }
+
+    /**
+     * @return true if the metadata of listed virtual machines should only be fetched once one of their tags is read
+     */
+    public boolean isMetaDataDeferred() {
+        String value = getTuningValue("deferMetaData", "vCloudDeferMetaData");
+
+        return (value != null && value.trim().equalsIgnoreCase("true"));
+    }
+
     public @Nonnull String getVMProductsResource() {
         ProviderContext ctx = getContext();
         String value;
@@ -245,11 +337,7 @@ public class vCloud extends AbstractCloud {
         if( time == null || time.length() < 1 ) {
             return 0L;
         }
-        Calendar cal = ISO8601.parse(time);
-        if (cal == null) {
-            return 0L;
-        }
-        return cal.getTimeInMillis();
+        return ISO8601.parseMillis(time, 0L);
     }
 
     @Override
@@ -278,6 +366,17 @@ public class vCloud extends AbstractCloud {
         }
     }
 
+    /**
+     * Passes on a notification published by vCloud Director, for example through its AMQP broker, so that the tasks
+     * it reports finished are confirmed at once rather than at their next scheduled poll. Tasks are still confirmed
+     * by reading them, and polling continues whether or not notifications arrive.
+     * @param notification the XML body of the notification
+     * @return the number of tasks being waited on that the notification concerned
+     */
+    public int onNotification(@Nonnull String notification) {
+        return TaskTracker.getInstance(this).onNotification(notification);
+    }
+
     public @Nonnull String toID(@Nonnull String url) {
         String[] parts = url.split("/");
 
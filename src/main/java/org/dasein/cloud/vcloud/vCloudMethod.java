@@ -57,7 +57,6 @@ import org.dasein.cloud.dc.Region;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
-import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.time.Day;
 import org.dasein.util.uom.time.TimePeriod;
 import org.dasein.util.uom.time.Minute;
@@ -72,8 +71,15 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -87,10 +93,22 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * [Class Documentation]
@@ -106,6 +124,8 @@ public class vCloudMethod {
     static public final String CREATE_DISK      = "createDisk";
     static public final String INSTANTIATE_VAPP = "instantiateVApp";
 
+    static public final int    QUERY_PAGE_SIZE  = 128;
+
     static public boolean isSupported(@Nonnull String version) {
         for( String v : VERSIONS ) {
             if( version.equals(v) ) {
@@ -154,6 +174,49 @@ public class vCloudMethod {
         return false;
     }
 
+    /**
+     * Indicates whether a literal may be placed in a query service filter expression as-is. Anything that could be
+     * read as filter syntax (<code>;</code>, <code>,</code>, <code>=</code>, parentheses or wildcards) is refused
+     * so callers fall back to filtering on the client.
+     * @param literal the key or value to check
+     * @return true if the literal can be used in a filter
+     */
+    static public boolean isFilterLiteral(@Nullable String literal) {
+        if( literal == null || literal.length() < 1 ) {
+            return false;
+        }
+        for( int i=0; i<literal.length(); i++ ) {
+            char c = literal.charAt(i);
+
+            if( !Character.isLetterOrDigit(c) && " _.@/+-".indexOf(c) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a query service filter matching resources with the specified metadata. Metadata filters require
+     * vCloud 5.1 or later.
+     * @param tags the metadata keys and values to match
+     * @param matchesAny true to match resources carrying any of the tags, false to require all of them
+     * @return the filter expression, or <code>null</code> if a key or value cannot be expressed as a filter
+     */
+    static public @Nullable String toMetaDataFilter(@Nonnull Map<String,String> tags, boolean matchesAny) {
+        StringBuilder filter = new StringBuilder();
+
+        for( Map.Entry<String,String> tag : tags.entrySet() ) {
+            if( !isFilterLiteral(tag.getKey()) || !isFilterLiteral(tag.getValue()) ) {
+                return null;
+            }
+            if( filter.length() > 0 ) {
+                filter.append(matchesAny ? "," : ";");
+            }
+            filter.append("metadata:").append(tag.getKey()).append("==STRING:").append(tag.getValue());
+        }
+        return (filter.length() > 0 ? filter.toString() : null);
+    }
+
     static private Logger logger = vCloud.getLogger(vCloudMethod.class);
     static private Logger wire   = vCloud.getWireLogger(vCloudMethod.class);
 
@@ -196,6 +259,195 @@ public class vCloudMethod {
         public String toString() { return (version + " [" + loginUrl + "]"); }
     }
 
+    /**
+     * A single record returned by the vCloud query service. Attributes are keyed by their attribute names in the
+     * record element (<code>name</code>, <code>href</code>, <code>status</code>, ...). Metadata is only present when
+     * requested through the <code>fields</code> parameter on vCloud 5.1 and later.
+     */
+    static public class QueryRecord {
+        public String                 type;
+        public HashMap<String,String> attributes = new HashMap<String,String>();
+        public HashMap<String,String> metadata;
+
+        public @Nullable String get(@Nonnull String attribute) { return attributes.get(attribute); }
+
+        public @Nullable String getHref() { return attributes.get("href"); }
+
+        public String toString() { return (type + attributes); }
+    }
+
+    static public class QueryPage {
+        public int              page;
+        public int              pageSize;
+        public int              total;
+        public List<QueryRecord> records = new ArrayList<QueryRecord>();
+
+        public int getPageCount() {
+            if( pageSize < 1 ) {
+                return 1;
+            }
+            return Math.max(1, (total + pageSize - 1)/pageSize);
+        }
+    }
+
+    /**
+     * Thrown from the iterator of a {@link QueryReader} when a page after the first could not be read. Iterators
+     * cannot throw checked exceptions, so the underlying {@link CloudException} or {@link InternalException} is
+     * carried as the cause.
+     */
+    static public class QueryException extends RuntimeException {
+        public QueryException(@Nonnull Exception cause) { super(cause.getMessage(), cause); }
+
+        public void rethrow() throws CloudException, InternalException {
+            Throwable cause = getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            else if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    /**
+     * Streams the records of a query in order. The first page is read up front; the remaining pages are fetched
+     * concurrently in the background, with at most <code>window</code> pages requested ahead of the page being
+     * consumed. A slow consumer therefore holds back the fetching rather than buffering the whole result. Each
+     * call to {@link #iterator()} reads the pages after the first afresh. A page after the first that cannot be read,
+     * including one that has become inaccessible, fails the iteration with a {@link QueryException} rather than cut
+     * the records short.
+     */
+    static public class QueryReader implements Iterable<QueryRecord> {
+        private final vCloudMethod method;
+        private final String       type;
+        private final String       filter;
+        private final String       fields;
+        private final QueryPage    first;
+        private final int          window;
+
+        private QueryReader(@Nonnull vCloudMethod method, @Nonnull String type, @Nullable String filter, @Nullable String fields, @Nonnull QueryPage first, int window) {
+            this.method = method;
+            this.type = type;
+            this.filter = filter;
+            this.fields = fields;
+            this.first = first;
+            this.window = Math.max(1, window);
+        }
+
+        public int getTotal() {
+            return first.total;
+        }
+
+        public @Nonnull Iterator<QueryRecord> iterator() {
+            return new Iterator<QueryRecord>() {
+                private final LinkedList<Future<QueryPage>> pending = new LinkedList<Future<QueryPage>>();
+                private final int pageCount = first.getPageCount();
+                private int nextPage = 2;
+                private Iterator<QueryRecord> current = first.records.iterator();
+
+                private void fill() {
+                    while( pending.size() < window && nextPage <= pageCount ) {
+                        final int page = nextPage++;
+
+                        pending.add(queryPages.submit(new Callable<QueryPage>() {
+                            public QueryPage call() throws Exception {
+                                return method.queryPage(type, filter, fields, page, first.pageSize);
+                            }
+                        }));
+                    }
+                }
+
+                private void abandon() {
+                    for( Future<QueryPage> f : pending ) {
+                        f.cancel(true);
+                    }
+                    pending.clear();
+                    nextPage = pageCount + 1;
+                }
+
+                public boolean hasNext() {
+                    fill();
+                    while( !current.hasNext() ) {
+                        if( pending.isEmpty() ) {
+                            return false;
+                        }
+                        // the pending pages are the ones just before the next to be requested
+                        int pageNumber = nextPage - pending.size();
+                        QueryPage page;
+
+                        try {
+                            page = pending.removeFirst().get();
+                        }
+                        catch( InterruptedException e ) {
+                            abandon();
+                            Thread.currentThread().interrupt();
+                            throw new QueryException(new InternalException(e));
+                        }
+                        catch( ExecutionException e ) {
+                            abandon();
+                            Throwable cause = e.getCause();
+
+                            throw new QueryException(cause instanceof Exception ? (Exception)cause : new InternalException(cause));
+                        }
+                        if( page == null ) {
+                            // the listing vanished from under us (e.g. credentials changed); stopping here would pass
+                            // off a partial listing as the whole of it
+                            abandon();
+                            throw new QueryException(new CloudException("Page " + pageNumber + " of " + pageCount + " of the " + type + " query could not be read"));
+                        }
+                        fill();
+                        current = page.records.iterator();
+                    }
+                    return true;
+                }
+
+                public QueryRecord next() {
+                    if( !hasNext() ) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * Reads every record into a list, unwrapping any failure into the checked exceptions of the driver.
+         * @return all records of the query
+         * @throws CloudException an error occurred processing the request in vCloud
+         * @throws InternalException an error occurred within Dasein Cloud
+         */
+        public @Nonnull List<QueryRecord> toList() throws CloudException, InternalException {
+            ArrayList<QueryRecord> records = new ArrayList<QueryRecord>(Math.max(first.total, first.records.size()));
+
+            try {
+                for( QueryRecord record : this ) {
+                    records.add(record);
+                }
+            }
+            catch( QueryException e ) {
+                e.rethrow();
+            }
+            return records;
+        }
+    }
+
+    static private final ExecutorService queryPages = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vCloud query page " + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     static public class VDC {
         public DataCenter dataCenter;
         public HashMap<String,String> actions;
@@ -837,12 +1089,24 @@ public class vCloudMethod {
     }
 
     public @Nullable String get(@Nonnull String resource, @Nullable String id) throws CloudException, InternalException {
+        return getURL(resource, toURL(resource, id));
+    }
+
+    /**
+     * Performs a GET against a fully qualified endpoint, as for resources that carry query parameters. The semantics
+     * match {@link #get(String, String)}.
+     * @param resource the resource type being fetched, used for tracing
+     * @param endpoint the full URL to fetch
+     * @return the response body, an empty string for no content, or <code>null</code> if not found/forbidden
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable String getURL(@Nonnull String resource, @Nonnull String endpoint) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER: " + vCloudMethod.class.getName() + ".get(" + resource + "," + id + ")");
+            logger.trace("ENTER: " + vCloudMethod.class.getName() + ".getURL(" + resource + "," + endpoint + ")");
         }
         try {
             Org org = authenticate(false);
-            String endpoint = toURL(resource, id);
             HttpClient client = null;
 
             if( wire.isDebugEnabled() ) {
@@ -891,7 +1155,7 @@ public class vCloudMethod {
                 else if( code == HttpServletResponse.SC_UNAUTHORIZED ) {
                     if( matches(getAPIVersion(), "1.0", null) ) {
                         authenticate(true);
-                        return get(resource, id);
+                        return getURL(resource, endpoint);
                     }
                     return null;
                 }
@@ -971,7 +1235,7 @@ public class vCloudMethod {
         }
         finally {
             if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT: " + vCloudMethod.class.getName() + ".get()");
+                logger.trace("EXIT: " + vCloudMethod.class.getName() + ".getURL()");
             }
 
         }
@@ -1157,6 +1421,10 @@ public class vCloudMethod {
         return "application/vnd.vmware.vcloud.rasdItem+xml";
     }
 
+    public @Nonnull String getMediaTypeForRasdItemsList() {
+        return "application/vnd.vmware.vcloud.rasdItemsList+xml";
+    }
+
     public @Nonnull String getMediaTypeForVApp() {
         return "application/vnd.vmware.vcloud.vApp+xml";
     }
@@ -1447,6 +1715,17 @@ public class vCloudMethod {
         return quota;
     }
 
+    /**
+     * The typed query service (<code>/api/query</code>) arrived with vCloud 1.5. Earlier versions have to walk the
+     * entity documents instead.
+     * @return true if list operations may use {@link #query(String, String, String)}
+     * @throws CloudException an error occurred determining the API version
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public boolean isQuerySupported() throws CloudException, InternalException {
+        return matches(getAPIVersion(), "1.5", null);
+    }
+
     public Collection<DataCenter> listDataCenters() throws CloudException, InternalException {
         ArrayList<DataCenter> dcs = new ArrayList<DataCenter>();
 
@@ -1717,40 +1996,48 @@ public class vCloudMethod {
         NodeList md = doc.getElementsByTagName(nsString + "MetadataEntry");
 
         for( int i=0; i<md.getLength(); i++ ) {
-            Node entry = md.item(i);
+            String[] entry = parseMetaDataEntry(md.item(i));
 
-            if( entry.hasChildNodes() ) {
-                NodeList parts = entry.getChildNodes();
-                String key = null, value = null;
+            if( entry != null ) {
+                resource.setTag(entry[0], entry[1]);
+            }
+        }
+    }
 
-                for( int j=0; j<parts.getLength(); j++ ) {
-                    Node part = parts.item(j);
-                    if(part.getNodeName().contains(":"))nsString = part.getNodeName().substring(0, part.getNodeName().indexOf(":") + 1);
-                    else nsString = "";
+    private @Nullable String[] parseMetaDataEntry(@Nonnull Node entry) {
+        if( entry.hasChildNodes() ) {
+            NodeList parts = entry.getChildNodes();
+            String key = null, value = null;
+            String nsString;
 
-                    if( part.getNodeName().equalsIgnoreCase(nsString + "Key") && part.hasChildNodes() ) {
-                        key = part.getFirstChild().getNodeValue().trim();
-                    }
-                    else if( part.getNodeName().equalsIgnoreCase(nsString + "TypedValue") && part.hasChildNodes() ) {
-                        NodeList values = part.getChildNodes();
+            for( int j=0; j<parts.getLength(); j++ ) {
+                Node part = parts.item(j);
+                if(part.getNodeName().contains(":"))nsString = part.getNodeName().substring(0, part.getNodeName().indexOf(":") + 1);
+                else nsString = "";
 
-                        for( int k=0; k<values.getLength(); k++ ) {
-                            Node v = values.item(k);
+                if( part.getNodeName().equalsIgnoreCase(nsString + "Key") && part.hasChildNodes() ) {
+                    key = part.getFirstChild().getNodeValue().trim();
+                }
+                else if( part.getNodeName().equalsIgnoreCase(nsString + "TypedValue") && part.hasChildNodes() ) {
+                    NodeList values = part.getChildNodes();
 
-                            if( v.getNodeName().equalsIgnoreCase(nsString + "Value") && v.hasChildNodes() ) {
-                                value = v.getFirstChild().getNodeValue().trim();
-                            }
+                    for( int k=0; k<values.getLength(); k++ ) {
+                        Node v = values.item(k);
+
+                        if( v.getNodeName().equalsIgnoreCase(nsString + "Value") && v.hasChildNodes() ) {
+                            value = v.getFirstChild().getNodeValue().trim();
                         }
                     }
-                    else if( part.getNodeName().equalsIgnoreCase(nsString + "Value") && part.hasChildNodes() ) {
-                        value = part.getFirstChild().getNodeValue().trim();
-                    }
                 }
-                if( key != null && value != null ) {
-                    resource.setTag(key, value);
+                else if( part.getNodeName().equalsIgnoreCase(nsString + "Value") && part.hasChildNodes() ) {
+                    value = part.getFirstChild().getNodeValue().trim();
                 }
             }
+            if( key != null && value != null ) {
+                return new String[] { key, value };
+            }
         }
+        return null;
     }
 
     public @Nonnull Document parseXML(@Nonnull String xml) throws CloudException, InternalException {
@@ -1773,6 +2060,25 @@ public class vCloudMethod {
         }
     }
 
+    /**
+     * @param node the element to serialize
+     * @return the element and its content as XML, without an XML declaration
+     * @throws InternalException the XML transformer could not be created or failed
+     */
+    public @Nonnull String toXML(@Nonnull Node node) throws InternalException {
+        try {
+            StringWriter sw = new StringWriter();
+            Transformer t = TransformerFactory.newInstance().newTransformer();
+
+            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            t.transform(new DOMSource(node), new StreamResult(sw));
+            return sw.toString();
+        }
+        catch( TransformerException e ) {
+            throw new InternalException(e);
+        }
+    }
+
     public @Nonnull String post(@Nonnull String action, @Nullable String vdcId, @Nullable String payload) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER: " + vCloudMethod.class.getName() + ".post(" + action + ")");
@@ -2217,6 +2523,153 @@ public class vCloudMethod {
         }
     }
 
+    /**
+     * Streams all records of the specified type from the query service. Only the first page is read before this
+     * method returns; see {@link QueryReader} for how the rest are fetched.
+     * @param type the query type, such as <code>vm</code>, <code>disk</code> or <code>orgVdcNetwork</code>
+     * @param filter an optional filter expression (e.g. <code>isVAppTemplate==false</code>), unencoded
+     * @param fields an optional comma-separated list of fields to return, unencoded
+     * @return the matching records, or <code>null</code> if this type may not be queried with the current credentials
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable QueryReader query(@Nonnull String type, @Nullable String filter, @Nullable String fields) throws CloudException, InternalException {
+        QueryPage first = queryPage(type, filter, fields, 1, QUERY_PAGE_SIZE);
+
+        if( first == null ) {
+            return null;
+        }
+        return new QueryReader(this, type, filter, fields, first, provider.getQueryConcurrency());
+    }
+
+    /**
+     * Reads all records of the specified type from the query service into memory.
+     * @param type the query type
+     * @param filter an optional filter expression, unencoded
+     * @param fields an optional comma-separated list of fields to return, unencoded
+     * @return the matching records, or <code>null</code> if this type may not be queried with the current credentials
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable List<QueryRecord> queryAll(@Nonnull String type, @Nullable String filter, @Nullable String fields) throws CloudException, InternalException {
+        QueryReader reader = query(type, filter, fields);
+
+        return (reader == null ? null : reader.toList());
+    }
+
+    /**
+     * Fetches a single page of query results in the records format.
+     * @param type the query type
+     * @param filter an optional filter expression, unencoded
+     * @param fields an optional comma-separated list of fields to return, unencoded
+     * @param page the 1-based page number
+     * @param pageSize the number of records per page
+     * @return the page, or <code>null</code> if this type may not be queried with the current credentials
+     * @throws CloudException an error occurred processing the request in vCloud
+     * @throws InternalException an error occurred within Dasein Cloud
+     */
+    public @Nullable QueryPage queryPage(@Nonnull String type, @Nullable String filter, @Nullable String fields, int page, int pageSize) throws CloudException, InternalException {
+        StringBuilder url = new StringBuilder();
+
+        url.append(toURL("query", null));
+        try {
+            url.append("?type=").append(URLEncoder.encode(type, "utf-8"));
+            url.append("&format=records");
+            url.append("&page=").append(page);
+            url.append("&pageSize=").append(pageSize);
+            if( filter != null ) {
+                url.append("&filter=").append(URLEncoder.encode(filter, "utf-8"));
+            }
+            if( fields != null ) {
+                url.append("&fields=").append(URLEncoder.encode(fields, "utf-8"));
+            }
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+        String xml = getURL("query", url.toString());
+
+        if( xml == null || xml.equals("") ) {
+            return null;
+        }
+        Document doc = parseXML(xml);
+        Node root = doc.getDocumentElement();
+        QueryPage result = new QueryPage();
+
+        result.page = page;
+        result.pageSize = pageSize;
+        if( root.hasAttributes() ) {
+            Node n = root.getAttributes().getNamedItem("total");
+
+            if( n != null ) {
+                result.total = Integer.parseInt(n.getNodeValue().trim());
+            }
+            n = root.getAttributes().getNamedItem("pageSize");
+            if( n != null ) {
+                result.pageSize = Integer.parseInt(n.getNodeValue().trim());
+            }
+            n = root.getAttributes().getNamedItem("page");
+            if( n != null ) {
+                result.page = Integer.parseInt(n.getNodeValue().trim());
+            }
+        }
+        NodeList children = root.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            Node child = children.item(i);
+
+            if( child.getNodeType() != Node.ELEMENT_NODE ) {
+                continue;
+            }
+            String name = child.getNodeName();
+
+            if( name.contains(":") ) {
+                name = name.substring(name.indexOf(":") + 1);
+            }
+            if( !name.endsWith("Record") ) {
+                continue;
+            }
+            QueryRecord record = new QueryRecord();
+
+            record.type = name;
+            if( child.hasAttributes() ) {
+                for( int j=0; j<child.getAttributes().getLength(); j++ ) {
+                    Node attribute = child.getAttributes().item(j);
+
+                    record.attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+                }
+            }
+            if( child.hasChildNodes() ) {
+                NodeList parts = child.getChildNodes();
+
+                for( int j=0; j<parts.getLength(); j++ ) {
+                    Node part = parts.item(j);
+
+                    if( part.getNodeName().equals("Metadata") || part.getNodeName().endsWith(":Metadata") ) {
+                        NodeList entries = part.getChildNodes();
+
+                        for( int k=0; k<entries.getLength(); k++ ) {
+                            Node entry = entries.item(k);
+
+                            if( entry.getNodeName().equals("MetadataEntry") || entry.getNodeName().endsWith(":MetadataEntry") ) {
+                                String[] kv = parseMetaDataEntry(entry);
+
+                                if( kv != null ) {
+                                    if( record.metadata == null ) {
+                                        record.metadata = new HashMap<String, String>();
+                                    }
+                                    record.metadata.put(kv[0], kv[1]);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            result.records.add(record);
+        }
+        return result;
+    }
+
     public @Nonnull String toAdminURL(@Nonnull String resource, @Nullable String id) throws CloudException, InternalException {
         Org org = authenticate(false);
         String url;
@@ -2267,75 +2720,46 @@ public class vCloudMethod {
         return url;
     }
 
-    public void waitFor(@Nullable String xmlTask) throws CloudException {
-        long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 30L);
-        String taskId = null;
-
-        int passCount = 1;
-        while( timeout > System.currentTimeMillis() ) {
-            if( xmlTask == null || xmlTask.equals("") ) {
-                return;
-            }
-            NodeList tasks;
-
-            try {
-                Document doc = parseXML(xmlTask);
-                String docElementTagName = doc.getDocumentElement().getTagName();
-                String nsString = "";
-                if(docElementTagName.contains(":"))nsString = docElementTagName.substring(0, docElementTagName.indexOf(":") + 1);
-                tasks = doc.getElementsByTagName(nsString + "Task");
-            }
-            catch( Throwable ignore ) {
-                return;
-            }
-            if( tasks.getLength() < 1 ) {
-                return;
-            }
-            Node task = tasks.item(0);
-
-            if( task.hasAttributes() ) {
-                Node status = task.getAttributes().getNamedItem("status");
-
-                if( status != null ) {
-                    String s = status.getNodeValue().trim();
-
-                    if( s.equals("success") ) {
-                        return;
-                    }
-                    else if( s.equals("error") ) {
-                        NodeList elements = task.getChildNodes();
+    /**
+     * Starts watching the task found in a vCloud response without blocking. The future belongs to this caller alone:
+     * cancelling it does not disturb other callers waiting on the same task. See {@link TaskTracker}.
+     * @param xmlTask the response holding the task, which may be the task itself or an entity embedding it
+     * @return a future completing with the final task document, or failing with the error the task ended with
+     */
+    public @Nonnull Future<String> track(@Nullable String xmlTask) {
+        return TaskTracker.getInstance(provider).track(provider, xmlTask);
+    }
 
-                        for( int i=0; i<elements.getLength(); i++ ) {
-                            Node element = elements.item(i);
+    /**
+     * Blocks until the task found in a vCloud response finishes, for up to 30 minutes.
+     * @param xmlTask the response holding the task, which may be the task itself or an entity embedding it
+     * @throws CloudException the task failed, or the calling thread was interrupted while waiting
+     */
+    public void waitFor(@Nullable String xmlTask) throws CloudException {
+        Future<String> task = track(xmlTask);
 
-                            if( element.getNodeName().equalsIgnoreCase("Error") ) {
-                                parseError(element);
-                                return;
-                            }
-                        }
-                    }
-                }
-                if( taskId == null ) {
-                    Node href = task.getAttributes().getNamedItem("href");
+        try {
+            task.get(30L, TimeUnit.MINUTES);
+        }
+        catch( TimeoutException e ) {
+            task.cancel(false);
+            logger.warn("Task timed out: " + task);
+        }
+        catch( InterruptedException e ) {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for " + task);
+        }
+        catch( CancellationException e ) {
+            throw new CloudException(e.getMessage());
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
 
-                    if( href == null ) {
-                        return;
-                    }
-                    taskId = provider.toID(href.getNodeValue().trim());
-                }
-            }
-            try {
-                if (passCount > 10) {
-                    Thread.sleep(10 * CalendarWrapper.SECOND);
-                } else {
-                    Thread.sleep(passCount * CalendarWrapper.SECOND);
-                }
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
             }
-            catch( InterruptedException ignore ) { }
-            try { xmlTask = get("task", taskId); }
-            catch( Throwable ignore ) { }
-            passCount += 1;
+            throw new CloudException(cause);
         }
-        logger.warn("Task timed out: " + taskId);
     }
 }
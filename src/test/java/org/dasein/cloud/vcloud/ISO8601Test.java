@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the allocation-free millisecond codec in {@link ISO8601} against the original <code>Calendar</code> based
+ * implementation using randomly generated (but reproducible) timestamps.
+ */
+public class ISO8601Test {
+    static private final long INVALID = Long.MIN_VALUE;
+    static private final int  SAMPLES = 200000;
+
+    static private long reference(String text) {
+        Calendar cal = ISO8601.parse(text);
+
+        return (cal == null ? INVALID : cal.getTimeInMillis());
+    }
+
+    static private String pad(int n, int width) {
+        StringBuilder str = new StringBuilder();
+
+        str.append(Math.abs(n));
+        while( str.length() < width ) {
+            str.insert(0, '0');
+        }
+        return (n < 0 ? "-" : "") + str;
+    }
+
+    static private String randomTimestamp(Random random) {
+        StringBuilder str = new StringBuilder();
+        int r = random.nextInt(100);
+
+        if( r < 2 ) {
+            str.append(random.nextBoolean() ? '-' : '+');
+        }
+        // mostly modern dates, some around and before the Gregorian cutover
+        str.append(pad(r < 10 ? random.nextInt(10000) : 1900 + random.nextInt(200), 4));
+        str.append('-').append(pad(random.nextInt(14), 2));
+        str.append('-').append(pad(random.nextInt(33), 2));
+        str.append('T').append(pad(random.nextInt(26), 2));
+        str.append(':').append(pad(random.nextInt(62), 2));
+        str.append(':').append(pad(random.nextInt(62), 2));
+        str.append('.').append(pad(random.nextInt(1000), 3));
+        r = random.nextInt(10);
+        if( r < 4 ) {
+            str.append('Z');
+        }
+        else if( r < 9 ) {
+            str.append(random.nextBoolean() ? '+' : '-').append(pad(random.nextInt(26), 2)).append(':').append(pad(random.nextInt(62), 2));
+        }
+        else {
+            str.append(random.nextBoolean() ? "+5:30" : "+0530");
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void parseMillisMatchesParse() {
+        Random random = new Random(8601L);
+
+        for( int i=0; i<SAMPLES; i++ ) {
+            String text = randomTimestamp(random);
+
+            assertEquals(text, reference(text), ISO8601.parseMillis(text, INVALID));
+        }
+    }
+
+    @Test
+    public void parseMillisMatchesParseOnMangledInput() {
+        Random random = new Random(1601L);
+        String alphabet = "0123456789-+:.TZ x";
+
+        for( int i=0; i<SAMPLES; i++ ) {
+            char[] text = randomTimestamp(random).toCharArray();
+
+            text[random.nextInt(text.length)] = alphabet.charAt(random.nextInt(alphabet.length()));
+            String str = new String(text);
+
+            assertEquals(str, reference(str), ISO8601.parseMillis(str, INVALID));
+        }
+    }
+
+    @Test
+    public void parseMillisKnownValues() {
+        assertEquals(0L, ISO8601.parseMillis("1970-01-01T00:00:00.000Z", INVALID));
+        assertEquals(951782400000L, ISO8601.parseMillis("2000-02-29T00:00:00.000Z", INVALID));
+        assertEquals(1360079160123L, ISO8601.parseMillis("2013-02-05T10:46:00.123-05:00", INVALID));
+        assertEquals(INVALID, ISO8601.parseMillis("2013-02-29T00:00:00.000Z", INVALID));
+        assertEquals(INVALID, ISO8601.parseMillis("2013-02-05T10:46:00Z", INVALID));
+        assertEquals(INVALID, ISO8601.parseMillis("", INVALID));
+        assertNull(ISO8601.parse("2013-02-05T10:46:00.000+24:00"));
+        assertEquals(INVALID, ISO8601.parseMillis("2013-02-05T10:46:00.000+24:00", INVALID));
+    }
+
+    @Test
+    public void formatRoundTrips() {
+        Random random = new Random(1970L);
+        long min = ISO8601.parseMillis("1583-01-01T00:00:00.000Z", INVALID);
+        long max = ISO8601.parseMillis("9999-12-31T23:59:59.999Z", INVALID);
+
+        for( int i=0; i<SAMPLES; i++ ) {
+            long millis = min + (long)(random.nextDouble() * (max - min));
+            String text = ISO8601.format(millis);
+
+            assertEquals(text, millis, reference(text));
+            assertEquals(text, millis, ISO8601.parseMillis(text, INVALID));
+        }
+        assertEquals("1970-01-01T00:00:00.000Z", ISO8601.format(0L));
+        assertEquals("1969-12-31T23:59:59.999Z", ISO8601.format(-1L));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the poll schedule of {@link TaskDurations} follows the durations it has recorded.
+ */
+public class TaskDurationsTest {
+    static private final long MINUTE = 60000L;
+
+    static private TaskDurations learn(long typical, long spread, int samples) {
+        TaskDurations durations = new TaskDurations();
+        Random random = new Random(typical);
+
+        for( int i=0; i<samples; i++ ) {
+            durations.record(typical - spread + (long)(random.nextDouble() * 2 * spread));
+        }
+        return durations;
+    }
+
+    @Test
+    public void unknownUntilEnoughSamples() {
+        TaskDurations durations = learn(MINUTE, 1000L, 4);
+
+        assertEquals(-1L, durations.getPollDelay(0L));
+        durations.record(MINUTE);
+        assertTrue(durations.getPollDelay(0L) > 0L);
+    }
+
+    @Test
+    public void quickTasksArePolledQuickly() {
+        TaskDurations durations = learn(300L, 50L, 50);
+        long delay = durations.getPollDelay(0L);
+
+        assertTrue("First poll after " + delay + " ms", delay >= TaskDurations.MIN_DELAY && delay < 1000L);
+    }
+
+    @Test
+    public void longTasksArePolledDenselyNearTheirUsualEnd() {
+        TaskDurations durations = learn(20 * MINUTE, MINUTE, 50);
+        long early = durations.getPollDelay(MINUTE);
+        long near = durations.getPollDelay(19 * MINUTE);
+
+        assertEquals(TaskDurations.MAX_DELAY, early);
+        assertTrue("Poll after " + near + " ms near the usual end", near < early);
+    }
+
+    @Test
+    public void overdueQuickTaskIsStillPolledWithinSeconds() {
+        TaskDurations durations = learn(300L, 50L, 50);
+        long finished = 2000L;
+        long elapsed = 0L;
+
+        // a sub-second operation taking two seconds under load
+        while( elapsed < finished ) {
+            elapsed += durations.getPollDelay(elapsed);
+        }
+        assertTrue("Seen finished after " + elapsed + " ms", elapsed < finished + 2000L);
+        assertTrue(durations.getPollDelay(10 * MINUTE) <= TaskDurations.OVERDUE_MAX_DELAY);
+    }
+
+    @Test
+    public void oldSamplesAgeOut() {
+        TaskDurations durations = learn(300L, 50L, 900);
+
+        for( int i=0; i<2000; i++ ) {
+            durations.record(20 * MINUTE);
+        }
+        assertEquals(TaskDurations.MAX_DELAY, durations.getPollDelay(0L));
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vcloud;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which tasks {@link TaskTracker} takes to be finished from the notifications vCloud Director publishes, and
+ * that a notification has them polled ahead of their schedule.
+ */
+public class TaskTrackerTest {
+    static private final String TASK_ID = "a1a2a3a4-b1b2-c1c2-d1d2-e1e2e3e4e5e6";
+
+    static private String notification(String type, String links) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<vmext:Notification xmlns:vmext=\"http://www.vmware.com/vcloud/extension/v1.5\" xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" type=\"" + type + "\" eventId=\"0d1c2b3a\">\n" +
+                "  <vmext:Link rel=\"up\" type=\"application/vnd.vmware.admin.organization+xml\" name=\"org\" href=\"https://vcd.example.com/api/org/0000\"/>\n" +
+                links +
+                "  <vmext:Timestamp>2015-06-01T12:00:00.000Z</vmext:Timestamp>\n" +
+                "  <vmext:OperationSuccess>true</vmext:OperationSuccess>\n" +
+                "</vmext:Notification>";
+    }
+
+    static private String taskLink(String id) {
+        return "  <vmext:Link rel=\"entity\" type=\"application/vnd.vmware.vcloud.task+xml\" name=\"task\" href=\"https://vcd.example.com/api/task/" + id + "\"/>\n";
+    }
+
+    static private String taskDocument(String status, String id) {
+        return "<Task status=\"" + status + "\" href=\"https://vcd.example.com/api/task/" + id + "\"/>";
+    }
+
+    /**
+     * Reads every task as having the given status, counting the reads.
+     */
+    static private class StubReader implements TaskTracker.TaskReader {
+        private final AtomicInteger reads = new AtomicInteger(0);
+        private final String        status;
+
+        StubReader(String status) {
+            this.status = status;
+        }
+
+        public String read(TaskTracker.TrackedTask task) {
+            reads.incrementAndGet();
+            return taskDocument(status, task.getTaskId());
+        }
+
+        boolean awaitReads(int count, long millis) throws InterruptedException {
+            long until = System.currentTimeMillis() + millis;
+
+            while( reads.get() < count && System.currentTimeMillis() < until ) {
+                Thread.sleep(10L);
+            }
+            return (reads.get() >= count);
+        }
+    }
+
+    static private String taskEntityLink(String id) {
+        return "  <vmext:EntityLink rel=\"entity\" type=\"vcloud:task\" name=\"vappDeploy\" id=\"urn:vcloud:task:" + id + "\"/>\n";
+    }
+
+    @Test
+    public void completedTaskIsFoundByLink() {
+        String xml = notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID));
+
+        assertEquals(Collections.singletonList(TASK_ID), TaskTracker.getFinishedTaskIds(xml));
+    }
+
+    @Test
+    public void completedTaskIsFoundByEntityLinkOnce() {
+        String xml = notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID) + taskEntityLink(TASK_ID));
+
+        assertEquals(Collections.singletonList(TASK_ID), TaskTracker.getFinishedTaskIds(xml));
+    }
+
+    @Test
+    public void failedAndAbortedTasksAreFound() {
+        String other = "f1f2f3f4-0000-1111-2222-333344445555";
+
+        assertEquals(Collections.singletonList(TASK_ID), TaskTracker.getFinishedTaskIds(notification("com/vmware/vcloud/event/task/fail", taskEntityLink(TASK_ID))));
+        assertEquals(Arrays.asList(TASK_ID, other), TaskTracker.getFinishedTaskIds(notification("com/vmware/vcloud/event/task/abort", taskLink(TASK_ID) + taskLink(other))));
+    }
+
+    @Test
+    public void startedTaskIsIgnored() {
+        assertEquals(0, TaskTracker.getFinishedTaskIds(notification("com/vmware/vcloud/event/task/start", taskLink(TASK_ID))).size());
+        assertEquals(0, TaskTracker.getFinishedTaskIds(notification("com/vmware/vcloud/event/task/create", taskLink(TASK_ID))).size());
+    }
+
+    @Test
+    public void otherEntitiesAreIgnored() {
+        String vm = "  <vmext:Link rel=\"entity\" type=\"application/vnd.vmware.vcloud.vm+xml\" name=\"vm\" href=\"https://vcd.example.com/api/vApp/vm-" + TASK_ID + "\"/>\n";
+
+        assertEquals(0, TaskTracker.getFinishedTaskIds(notification("com/vmware/vcloud/event/vm/deploy", vm)).size());
+        assertEquals(0, TaskTracker.getFinishedTaskIds("<Task status=\"success\"/>").size());
+    }
+
+    @Test
+    public void notificationPollsTaskAtOnce() throws Exception {
+        StubReader reader = new StubReader("success");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        // a new task is first polled a second after it is tracked
+        Future<String> task = tracker.track(null, TASK_ID, null);
+
+        assertEquals(1, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID))));
+        assertEquals(taskDocument("success", TASK_ID), task.get(500L, TimeUnit.MILLISECONDS));
+        assertEquals(1, reader.reads.get());
+    }
+
+    @Test
+    public void earlierPollSupersedesLaterOne() throws Exception {
+        StubReader reader = new StubReader("running");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        long started = System.currentTimeMillis();
+        Future<String> task = tracker.track(null, TASK_ID, null);
+
+        try {
+            assertEquals(1, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID))));
+            assertTrue(reader.awaitReads(1, 500L));
+            // the cycle first scheduled for one second in has been superseded, and the task now backs off for two
+            Thread.sleep(Math.max(0L, started + 1600L - System.currentTimeMillis()));
+            assertEquals(1, reader.reads.get());
+            assertFalse(task.isDone());
+            // the earlier cycle went on to schedule the next poll itself
+            assertTrue(reader.awaitReads(2, 1500L));
+        }
+        finally {
+            task.cancel(false);
+        }
+    }
+
+    @Test
+    public void compatTaskIsFoundByTypedId() throws Exception {
+        StubReader reader = new StubReader("success");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        Future<String> task = tracker.track(null, "/task/" + TASK_ID, null);
+
+        assertEquals(1, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskEntityLink(TASK_ID))));
+        task.get(500L, TimeUnit.MILLISECONDS);
+        assertEquals(1, reader.reads.get());
+    }
+
+    @Test
+    public void notificationOfUnwatchedTaskIsIgnored() throws Exception {
+        StubReader reader = new StubReader("running");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        Future<String> task = tracker.track(null, TASK_ID, null);
+
+        try {
+            assertEquals(0, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskLink("f1f2f3f4-0000-1111-2222-333344445555"))));
+            Thread.sleep(500L);
+            assertEquals(0, reader.reads.get());
+        }
+        finally {
+            task.cancel(false);
+        }
+    }
+
+    @Test
+    public void cancellingOneWaiterLeavesTheOthersWaiting() throws Exception {
+        StubReader reader = new StubReader("success");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        Future<String> first = tracker.track(null, TASK_ID, null);
+        Future<String> second = tracker.track(null, TASK_ID, null);
+
+        assertTrue(first.cancel(true));
+        assertTrue(first.isCancelled());
+        assertFalse(second.isDone());
+        assertEquals(1, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID))));
+        assertEquals(taskDocument("success", TASK_ID), second.get(500L, TimeUnit.MILLISECONDS));
+        assertEquals(1, reader.reads.get());
+    }
+
+    @Test
+    public void lastWaiterLeavingStopsTheWatch() throws Exception {
+        StubReader reader = new StubReader("success");
+        TaskTracker tracker = new TaskTracker(1, reader);
+        Future<String> first = tracker.track(null, TASK_ID, null);
+        Future<String> second = tracker.track(null, TASK_ID, null);
+
+        first.cancel(false);
+        second.cancel(false);
+        assertEquals(0, tracker.onNotification(notification("com/vmware/vcloud/event/task/complete", taskLink(TASK_ID))));
+        Thread.sleep(1300L);
+        assertEquals(0, reader.reads.get());
+    }
+}